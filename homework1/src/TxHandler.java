@@ -2,9 +2,10 @@ package src;
 
 import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 
 public class TxHandler {
 
@@ -83,51 +84,82 @@ public class TxHandler {
      * of accepted transactions, and updating the current UTXO pool as appropriate.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        // transfer input
-        ArrayList<Transaction> possibleTxsList = new ArrayList<>(Arrays.asList(possibleTxs));
+        /* important! The transactions are not ordered, so a transaction may spend the output of one
+         * listed after it. We still go through the list in passes, in order, until a pass accepts
+         * nothing, since that decides which of two conflicting transactions gets in. But only a
+         * missing input can make a rejected transaction valid later, so instead of checking
+         * everything again, a rejected transaction waits for its first missing input and is
+         * checked again once it is created: in the same pass if it comes later in the list, and
+         * in the next pass otherwise. */
+
+        // the transactions waiting for each missing input, and those to check in this pass and the next
+        HashMap<UTXO, List<Integer>> waiting = new HashMap<>();
+        PriorityQueue<Integer> pass = new PriorityQueue<>();
+        PriorityQueue<Integer> nextPass = new PriorityQueue<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            pass.add(i);
+        }
         // initialize an ArrayList to save valid transactions
         ArrayList<Transaction> validTx = new ArrayList<>();
+        while (!pass.isEmpty()) {
+            int i = pass.poll();
+            Transaction aTran = possibleTxs[i];
+            // if a transaction is valid, we need to change the owner of coins
+            if (isValidTx(aTran)) {
+                // delete the inputs (the original owner does not hold the coins anymore)
+                for (Transaction.Input txIn : aTran.getInputs()) {
+                    UTXO toDelUtxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
+                    this.curUTXOPool.removeUTXO(toDelUtxo);
+                }
 
-        /* important! The transactions are not ordered, so we may need to iterate the transaction list
-         * many times to make sure all valid transactions are handled */
-        while (true) {
-            int initSize = possibleTxsList.size();
-            List<Transaction> toRemove = new ArrayList<>();
-            // iterate through each transaction once
-            for (Transaction aTran : possibleTxsList) {
-                // if a transaction is valid, we need to change the owner of coins
-                if (isValidTx(aTran)) {
-                    // delete the inputs (the original owner does not hold the coins anymore)
-                    for (Transaction.Input txIn : aTran.getInputs()) {
-                        byte[] inPrevHash = txIn.prevTxHash;
-                        int inOututIndex = txIn.outputIndex;
-                        UTXO toDelUtxo = new UTXO(inPrevHash, inOututIndex);
-                        this.curUTXOPool.removeUTXO(toDelUtxo);
-                    }
-
-                    // add the outputs (to the new owners)
-                    /* note that there can be more than one outputs in one transaction,
-                     * so we need an index to distinguish them.*/
-                    int index = 0;
-                    byte[] aTranHash = aTran.getHash();
-                    for (Transaction.Output txOut : aTran.getOutputs()) {
-                        UTXO utxo = new UTXO(aTranHash, index);
-                        this.curUTXOPool.addUTXO(utxo, txOut);
-                        index++;
+                // add the outputs (to the new owners), waking whoever waits for them
+                /* note that there can be more than one outputs in one transaction,
+                 * so we need an index to distinguish them.*/
+                int index = 0;
+                byte[] aTranHash = aTran.getHash();
+                for (Transaction.Output txOut : aTran.getOutputs()) {
+                    UTXO utxo = new UTXO(aTranHash, index);
+                    this.curUTXOPool.addUTXO(utxo, txOut);
+                    List<Integer> woken = waiting.remove(utxo);
+                    if (woken != null) {
+                        for (int w : woken) {
+                            (w > i ? pass : nextPass).add(w);
+                        }
                     }
+                    index++;
+                }
 
-                    validTx.add(aTran);
-                    toRemove.add(aTran);
+                validTx.add(aTran);
+            } else {
+                // a transaction with all its inputs present can never become valid
+                UTXO missing = missingInput(aTran);
+                if (missing != null) {
+                    waiting.computeIfAbsent(missing, k -> new ArrayList<>()).add(i);
                 }
             }
-            possibleTxsList.removeAll(toRemove);
-            // condition to break the loop: either the size is unchanged or all transactions are handled
-            if (possibleTxsList.size() == initSize || possibleTxsList.size() == 0) {
-                break;
+            // this pass is over, go on with the transactions woken for the next one
+            if (pass.isEmpty()) {
+                PriorityQueue<Integer> swap = pass;
+                pass = nextPass;
+                nextPass = swap;
             }
         }
 
         return validTx.toArray(new Transaction[0]);
     }
 
+    /**
+     * @return the first input of {@code tx} that is not in the current UTXO pool, or null if all
+     * of them are
+     */
+    private UTXO missingInput(Transaction tx) {
+        for (Transaction.Input txIn : tx.getInputs()) {
+            UTXO utxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
+            if (!this.curUTXOPool.contains(utxo)) {
+                return utxo;
+            }
+        }
+        return null;
+    }
+
 }
@@ -332,4 +332,49 @@ public class TxHandlerTest {
         // since the value is negative, this mush be false;
         assertFalse(handler.isValidTx(tx));
     }
-}
\ No newline at end of file
+
+    /*
+     *  Test 10: the transactions are checked in passes over the list in order. C spends the genesis
+     *  coins and the output of P listed after it, and D spends the genesis coins too. C waits for P
+     *  until the next pass, so D gets the genesis coins first and C is rejected.
+     * */
+    @Test
+    public void testPassOrder() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        // init block, plus a second genesis transaction for P to spend
+        Init init = helperInit();
+        Transaction genesisTx = init.genesisTx;
+        UTXOPool pool = init.pool;
+        Transaction genesisTx2 = new Transaction();
+        genesisTx2.addOutput(50, kpA.getPublic());
+        genesisTx2.finalize();
+        pool.addUTXO(new UTXO(genesisTx2.getHash(), 0), genesisTx2.getOutput(0));
+        TxHandler handler = new TxHandler(pool);
+
+        Transaction txP = new Transaction();
+        txP.addInput(genesisTx2.getHash(), 0);
+        txP.addOutput(50, kpA.getPublic());
+        txP.getInput(0).addSignature(helperSign(txP, kpA.getPrivate()));
+        txP.finalize();
+
+        Transaction txC = new Transaction();
+        txC.addInput(genesisTx.getHash(), 0);
+        txC.addInput(txP.getHash(), 0);
+        txC.addOutput(150, kpC.getPublic());
+        txC.getInput(0).addSignature(helperSign(txC, kpA.getPrivate()));
+        // helperSign only signs the first input
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(kpA.getPrivate());
+        sig.update(txC.getRawDataToSign(1));
+        txC.getInput(1).addSignature(sig.sign());
+        txC.finalize();
+
+        Transaction txD = new Transaction();
+        txD.addInput(genesisTx.getHash(), 0);
+        txD.addOutput(100, kpD.getPublic());
+        txD.getInput(0).addSignature(helperSign(txD, kpA.getPrivate()));
+        txD.finalize();
+
+        // so only P and D are valid, in this order
+        assertEquals(Arrays.asList(txP, txD), Arrays.asList(handler.handleTxs(new Transaction[]{txC, txP, txD})));
+    }
+}
@@ -1,24 +1,53 @@
 package block_chain;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Block {
 
-    public static final double COINBASE = 25;
+    /** block reward in base units */
+    public static final long COINBASE = 25 * Transaction.COIN;
 
     private byte[] hash;
+    private Hash256 id;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** leaf 0 is the coinbase and leaf {@code i + 1} is {@code txs.get(i)} */
+    private MerkleTree merkleTree;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
-        coinbase = new Transaction(COINBASE, address);
+        coinbase = Transaction.coinbase(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.add(coinbase.getHash());
+    }
+
+    /**
+     * Creates a block holding {@code txs}, whose Merkle tree {@code tree} is already built with any
+     * leaf 0, so only the coinbase is hashed into it. Both are copied.
+     */
+    Block(byte[] prevHash, PublicKey address, ArrayList<Transaction> txs, MerkleTree tree) {
+        prevBlockHash = prevHash;
+        coinbase = Transaction.coinbase(COINBASE, address);
+        this.txs = new ArrayList<Transaction>(txs);
+        merkleTree = new MerkleTree(tree);
+        merkleTree.set(0, coinbase.getHash());
+    }
+
+    /** Creates an empty block whose coinbase transaction is {@code coinbase}, as read back from a {@link BlockStore} */
+    Block(byte[] prevHash, Transaction coinbase) {
+        prevBlockHash = prevHash;
+        this.coinbase = coinbase;
+        txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.add(leaf(coinbase));
     }
 
     public Transaction getCoinbase() {
@@ -29,12 +58,22 @@ public class Block {
         return hash;
     }
 
+    /** @return the block hash as a {@link Hash256}, or null if the block is not finalized */
+    public Hash256 getId() {
+        if (hash == null)
+            return null;
+        if (id == null || id.bytes() != hash)
+            id = Hash256.wrap(hash);
+        return id;
+    }
+
     public byte[] getPrevBlockHash() {
         return prevBlockHash;
     }
 
-    public ArrayList<Transaction> getTransactions() {
-        return txs;
+    /** @return the transactions after the coinbase, which can only be added through {@link #addTransaction} */
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(txs);
     }
 
     public Transaction getTransaction(int index) {
@@ -43,32 +82,68 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (tx.getHash() != null && merkleTree.size() == txs.size())
+            merkleTree.add(tx.getHash());
     }
 
-    public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
+    /**
+     * @return the Merkle root of the hashes of the coinbase and this block's transactions, in that
+     *         order, so blocks paying different addresses differ. The tree is extended as
+     *         transactions are added; it is rebuilt while a transaction added before it was
+     *         finalized has no hash yet, and kept once they all have one.
+     */
+    public byte[] getMerkleRoot() {
+        if (merkleTree.size() != txs.size() + 1) {
+            MerkleTree tree = new MerkleTree();
+            tree.add(leaf(coinbase));
+            boolean finalized = true;
+            for (Transaction tx : txs) {
+                finalized &= tx.getHash() != null;
+                tree.add(leaf(tx));
             }
+            if (!finalized)
+                return tree.getRoot();
+            merkleTree = tree;
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
+        return merkleTree.getRoot();
+    }
+
+    /** @return the hash of {@code tx}, or of its serialization if it is not finalized */
+    private static byte[] leaf(Transaction tx) {
+        return tx.getHash() != null ? tx.getHash() : Crypto.sha256().digest(tx.getRawTx());
+    }
+
+    /**
+     * @return a proof that the transaction with hash {@code txHash}, the coinbase included, is
+     *         committed to by this block, or null if the block does not contain it
+     */
+    public MerkleProof getInclusionProof(byte[] txHash) {
+        getMerkleRoot(); // brings the tree up to date with txs
+        if (Arrays.equals(coinbase.getHash(), txHash))
+            return new MerkleProof(txHash, 0, txs.size() + 1, merkleTree.getPath(0), prevBlockHash);
+        for (int i = 0; i < txs.size(); i++) {
+            if (Arrays.equals(txs.get(i).getHash(), txHash))
+                return new MerkleProof(txHash, i + 1, txs.size() + 1, merkleTree.getPath(i + 1), prevBlockHash);
+        }
+        return null;
+    }
+
+    /** @return the data committed to by the block hash: the previous block hash and the Merkle root */
+    public byte[] getRawBlock() {
+        byte[] merkleRoot = getMerkleRoot();
+        if (prevBlockHash == null)
+            return merkleRoot.clone();
+        byte[] raw = Arrays.copyOf(prevBlockHash, prevBlockHash.length + merkleRoot.length);
+        System.arraycopy(merkleRoot, 0, raw, prevBlockHash.length, merkleRoot.length);
         return raw;
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        byte[] merkleRoot = getMerkleRoot();
+        MessageDigest md = Crypto.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(merkleRoot);
+        hash = md.digest();
     }
 }
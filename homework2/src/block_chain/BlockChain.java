@@ -3,34 +3,85 @@ package block_chain;
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
+    /**
+     * number of heights kept below and including the max height: no block can be added on a
+     * parent more than {@code CUT_OFF_AGE - 1} below it, so anything older can go
+     */
+    private static final int RETAINED_HEIGHTS = CUT_OFF_AGE - 1;
     private int oldestBlockHeight;
-    private final HashMap<ByteArrayWrapper, BlockNode> blockChain;
+    private final HashMap<Hash256, BlockNode> blockChain;
+    /**
+     * the kept nodes by height, height {@code h} in bucket {@code h % heights.length}; the kept
+     * heights plus the one being pruned never span more buckets than there are
+     */
+    private final ArrayList<ArrayList<BlockNode>> heights;
+    /** limits of the blocks kept while their parent is unknown */
+    public static final int MAX_ORPHAN_BLOCKS = 100;
+    public static final long MAX_ORPHAN_BYTES = 32 << 20;
+    public static final long MAX_ORPHAN_AGE_MILLIS = 20 * 60 * 1000;
+    private final OrphanBlockPool orphans = new OrphanBlockPool(MAX_ORPHAN_BLOCKS, MAX_ORPHAN_BYTES, MAX_ORPHAN_AGE_MILLIS);
     private BlockNode maxHeightNode;
     private final TransactionPool txPool;
+    /** the one live UTXO set, which is at the state right after {@code utxoNode} */
+    private final UTXOPool utxoPool;
+    private BlockNode utxoNode;
+    /** where pruned blocks go, or null if they are dropped */
+    private final BlockStore blockStore;
+    /** where snapshots of the UTXO set at pruned main chain blocks go, or null if none are taken */
+    private final UTXOSnapshots snapshots;
+    /** writes the snapshots in the background, null if none are taken */
+    private final ExecutorService snapshotWriter;
+    /** the last snapshot write submitted */
+    private Future<?> lastSnapshot;
+    /** the first snapshot write that failed and was not reported yet */
+    private final AtomicReference<IOException> snapshotFailure = new AtomicReference<IOException>();
+    /**
+     * held for writing while a block is added, and for reading by everything else that looks at
+     * the blocks or the live UTXO set; the transaction pool is thread-safe on its own
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CopyOnWriteArrayList<TipListener> tipListeners = new CopyOnWriteArrayList<TipListener>();
+
+    /** Notified when the max height block changes, while the chain is locked for writing */
+    public interface TipListener {
+        void tipChanged(Block tip);
+    }
 
     // This is an internal class
     // a BlockNode is actually a block
     private static class BlockNode {
         public Block block;
         public int h;
-        public UTXOPool utxoPool;
+        // how this block changed the UTXO set, to move the live set across it
+        public BlockUndo undo;
+        // null at the oldest height, so nothing kept refers to pruned blocks
         public BlockNode parent;
         // all children nodes
         public ArrayList<BlockNode> children;
 
         // constructor
-        public BlockNode(Block block, BlockNode parent, UTXOPool utxoPool) {
+        public BlockNode(Block block, BlockNode parent, BlockUndo undo) {
             this.block = block;
             this.parent = parent;
-            this.utxoPool = utxoPool;
+            this.undo = undo;
             this.children = new ArrayList<>();
             if (parent == null) {
                 this.h = 1;
@@ -47,48 +98,162 @@ public class BlockChain {
      * block. Generally, the BlockChain constructor do 4 steps to initialize the instance.
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, new TrieUTXOStore());
+    }
+
+    /**
+     * create a block chain whose live UTXO set is kept in {@code utxoStore}, for example a
+     * {@link MappedUTXOStore} for ledgers too large for the heap. The store should be empty.
+     */
+    public BlockChain(Block genesisBlock, UTXOStore utxoStore) {
+        this(genesisBlock, utxoStore, Long.MAX_VALUE);
+    }
+
+    /**
+     * create a block chain whose transaction pool holds at most about {@code maxPoolBytes} of
+     * heap, see {@link TransactionPool#TransactionPool(long)}
+     */
+    public BlockChain(Block genesisBlock, UTXOStore utxoStore, long maxPoolBytes) {
+        this(genesisBlock, utxoStore, maxPoolBytes, null);
+    }
+
+    /**
+     * create a block chain that writes every block it prunes to {@code blockStore}, where
+     * {@link #getBlock} still finds it; a null store drops them
+     */
+    public BlockChain(Block genesisBlock, UTXOStore utxoStore, long maxPoolBytes, BlockStore blockStore) {
+        this(genesisBlock, 1, false, utxoStore, maxPoolBytes, blockStore, null);
+    }
+
+    /**
+     * create a block chain whose oldest block is {@code rootBlock} at {@code rootHeight}. If
+     * {@code fromSnapshot} is set, {@code utxoStore} already holds the UTXO set right after that
+     * block, otherwise it is the genesis block and its coinbase is added to the empty store.
+     */
+    private BlockChain(Block rootBlock, int rootHeight, boolean fromSnapshot, UTXOStore utxoStore, long maxPoolBytes,
+            BlockStore blockStore, UTXOSnapshots snapshots) {
         // init the members
         /* blockChain is a hash set of BlockNodes */
         blockChain = new HashMap<>();
-        UTXOPool utxoPool = new UTXOPool();
-        txPool = new TransactionPool();
+        heights = new ArrayList<>(RETAINED_HEIGHTS + 1);
+        for (int i = 0; i <= RETAINED_HEIGHTS; i++) {
+            heights.add(new ArrayList<BlockNode>());
+        }
+        utxoPool = new UTXOPool(utxoStore);
+        txPool = new TransactionPool(maxPoolBytes);
+        this.blockStore = blockStore;
+        this.snapshots = snapshots;
+        if (snapshots == null) {
+            snapshotWriter = null;
+        } else {
+            snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "utxo-snapshots");
+                t.setDaemon(true);
+                return t;
+            });
+        }
 
-        // 1. add coinbase utxos into utxoPool
-        Transaction coinbase = genesisBlock.getCoinbase();
-        for (int i = 0; i < coinbase.numOutputs(); i++) {
-            Transaction.Output out = coinbase.getOutput(i);
-            UTXO utxo = new UTXO(coinbase.getHash(), i);
-            utxoPool.addUTXO(utxo, out);
+        // 1. add coinbase utxos into utxoPool, a snapshot has them already
+        BlockUndo undo = new BlockUndo();
+        Transaction coinbase = rootBlock.getCoinbase();
+        if (!fromSnapshot) {
+            for (int i = 0; i < coinbase.numOutputs(); i++) {
+                Transaction.Output out = coinbase.getOutput(i);
+                UTXO utxo = new UTXO(coinbase.getId(), i);
+                undo.create(utxo, out, utxoPool.getTxOutput(utxo));
+                utxoPool.addUTXO(utxo, out);
+            }
         }
 
-        // 2. create a blockNode with the given block(genesisBlock)
-        BlockNode genesisNode = new BlockNode(genesisBlock, null, utxoPool);
+        // 2. create a blockNode with the given block(rootBlock)
+        BlockNode rootNode = new BlockNode(rootBlock, null, undo);
+        rootNode.h = rootHeight;
 
         // 3. register into the blockChain dictionary
-        ByteArrayWrapper wrappedGenesisHash = new ByteArrayWrapper(genesisBlock.getHash());
-        blockChain.put(wrappedGenesisHash, genesisNode);
+        register(rootNode);
 
         // 4. maintain(update) the maxHeightNode and oldestBlockHeight
-        maxHeightNode = genesisNode;
-        oldestBlockHeight = 1;
+        maxHeightNode = rootNode;
+        utxoNode = rootNode;
+        oldestBlockHeight = rootHeight;
+    }
+
+    /**
+     * Restarts a block chain from disk: the newest intact snapshot in {@code snapshots} is loaded
+     * into {@code utxoStore}, which should be empty, and the main chain blocks stored in
+     * {@code blockStore} after the snapshot's block are added again. Without a snapshot the stored
+     * blocks are replayed from {@code genesisBlock}. So the time to restart depends on the size of
+     * the UTXO set and the snapshot interval, not on the length of the chain.
+     *
+     * The chain keeps writing pruned blocks to the store and taking snapshots. Blocks that were
+     * not pruned yet when the node stopped were never stored and have to be received again.
+     *
+     * @throws IOException also if a stored main chain block cannot be added again, or if there
+     *         are snapshots but none is intact
+     */
+    public static BlockChain restore(Block genesisBlock, UTXOStore utxoStore, long maxPoolBytes, BlockStore blockStore,
+            UTXOSnapshots snapshots) throws IOException {
+        UTXOSnapshots.Snapshot snapshot = snapshots.loadNewest(utxoStore);
+        BlockChain chain;
+        if (snapshot == null) {
+            chain = new BlockChain(genesisBlock, 1, false, utxoStore, maxPoolBytes, blockStore, snapshots);
+        } else {
+            Block root = blockStore.get(snapshot.getBlockHash());
+            if (root == null) {
+                throw new IOException("the block of the snapshot at height " + snapshot.getHeight() + " is not stored");
+            }
+            chain = new BlockChain(root, snapshot.getHeight(), true, utxoStore, maxPoolBytes, blockStore, snapshots);
+        }
+        Block[] rejected = new Block[1];
+        blockStore.forEachMainChainBlockAfter(chain.getMaxHeightBlock().getHash(), block -> {
+            if (chain.addBlock(block))
+                return true;
+            rejected[0] = block;
+            return false;
+        });
+        if (rejected[0] != null) {
+            throw new IOException("stored main chain block " + rejected[0].getId() + " was rejected");
+        }
+        return chain;
     }
 
     /**
      * Get the maximum height block
      */
     public Block getMaxHeightBlock() {
-        return maxHeightNode.block;
+        lock.readLock().lock();
+        try {
+            return maxHeightNode.block;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Get the UTXOPool for mining a new block on top of max height block
+     * Get the UTXOPool for mining a new block on top of max height block. It is a copy, which
+     * should be released with {@link UTXOPool#release()} once done if the chain keeps its UTXOs
+     * in a {@link MappedUTXOStore}.
      */
     public UTXOPool getMaxHeightUTXOPool() {
-        return maxHeightNode.utxoPool;
+        lock.readLock().lock();
+        try {
+            return new UTXOPool(utxoPool);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public int getOldestBlockHeight() {
-        return oldestBlockHeight;
+        lock.readLock().lock();
+        try {
+            return oldestBlockHeight;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void addTipListener(TipListener listener) {
+        tipListeners.add(listener);
     }
 
     /**
@@ -108,21 +273,69 @@ public class BlockChain {
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
      *
+     * A block whose parent is unknown is kept for a while and added as soon as its parent is. Once
+     * a height is pruned, the main chain block there is final: blocks on branches forking below it
+     * are dropped, and blocks extending them are never added.
+     *
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
+        lock.writeLock().lock();
+        try {
+            if (!connectBlock(block)) {
+                return false;
+            }
+            connectOrphans(block.getId());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Connects the orphan blocks waiting for the block {@code hash}, then those waiting for them,
+     * and so on. Orphans that turn out to be invalid are dropped.
+     */
+    private void connectOrphans(Hash256 hash) {
+        ArrayDeque<Hash256> connected = new ArrayDeque<>();
+        connected.add(hash);
+        while (!connected.isEmpty()) {
+            for (Block child : orphans.removeChildren(connected.poll())) {
+                if (connectBlock(child)) {
+                    connected.add(child.getId());
+                }
+            }
+        }
+    }
+
+    /** {@link #addBlock} with the write lock held */
+    private boolean connectBlock(Block block) {
+        // a block that is not finalized has no id to be kept under, as an orphan or in the chain
+        if (block.getId() == null) {
+            return false;
+        }
         // get the parent node with the PrevBlockHash
-        byte[] prevBlockHash = block.getPrevBlockHash();
+        Hash256 prevBlockHash = Hash256.tryWrap(block.getPrevBlockHash());
         if (prevBlockHash == null) {
             return false;
         }
-        ByteArrayWrapper wrappedPrevHash = new ByteArrayWrapper(prevBlockHash);
-        BlockNode parent = this.blockChain.get(wrappedPrevHash);
+        BlockNode parent = this.blockChain.get(prevBlockHash);
         if (parent == null) {
+            // keep it until the parent arrives, see connectOrphans
+            orphans.add(block);
+            return false;
+        }
+
+        // check the length of current branch, cut off if too short
+        if (parent.h + 1 <= maxHeightNode.h - CUT_OFF_AGE) {
+            System.out.println("cut_off_age");
             return false;
         }
 
-        TxHandler handler = new TxHandler(parent.utxoPool);
+        // bring the live UTXO set to the parent's state, it is usually there already
+        moveUTXOPoolTo(parent);
+        BlockUndo undo = new BlockUndo();
+        TxHandler handler = new TxHandler(utxoPool, true, undo);
 
         Transaction[] blockTxs = new Transaction[block.getTransactions().size()];
         /* get the transactions in this new Block*/
@@ -132,57 +345,305 @@ public class BlockChain {
         Transaction[] validTxs = handler.handleTxs(blockTxs);
         /* make sure all the transactions are valid */
         if (validTxs.length != blockTxs.length) {
-            return false;
-        }
-
-        // check the length of current branch, cut off if too short
-        if (parent.h + 1 <= maxHeightNode.h - CUT_OFF_AGE) {
-            System.out.println("cut_off_age");
+            undo.disconnect(utxoPool);
+            moveUTXOPoolTo(maxHeightNode);
             return false;
         }
 
         // put in coinbase into UTXOPool
         for (int i = 0; i < block.getCoinbase().getOutputs().size(); i++) {
-            UTXO coinbaseUTXO = new UTXO(block.getCoinbase().getHash(), i);
-            handler.getUTXOPool().addUTXO(coinbaseUTXO, block.getCoinbase().getOutput(i));
-        }
-
-        // remove transactions from global txPool
-        List<Transaction> transactions = block.getTransactions();
-        for (Transaction transaction : transactions) {
-            txPool.removeTransaction(transaction.getHash());
+            UTXO coinbaseUTXO = new UTXO(block.getCoinbase().getId(), i);
+            undo.create(coinbaseUTXO, block.getCoinbase().getOutput(i), utxoPool.getTxOutput(coinbaseUTXO));
+            utxoPool.addUTXO(coinbaseUTXO, block.getCoinbase().getOutput(i));
         }
 
         // register in the new block
-        BlockNode thisNewBlock = new BlockNode(block, parent, handler.getUTXOPool());
-        blockChain.put(new ByteArrayWrapper(block.getHash()), thisNewBlock);
+        BlockNode thisNewBlock = new BlockNode(block, parent, undo);
+        register(thisNewBlock);
+        utxoNode = thisNewBlock;
 
-        // maintain maxHNode
+        // maintain maxHNode, the live UTXO set follows it
         if (parent.h + 1 > maxHeightNode.h) {
+            BlockNode oldTip = maxHeightNode;
+            boolean reorg = parent != oldTip;
             maxHeightNode = thisNewBlock;
+            if (reorg) {
+                revalidatePool(oldTip);
+            } else {
+                // remove the block's transactions from the pool, and whatever still spends the
+                // same outputs; a side block changes nothing the pool builds on
+                List<Transaction> transactions = block.getTransactions();
+                for (Transaction transaction : transactions) {
+                    txPool.removeTransaction(transaction.getHash());
+                }
+                for (Transaction transaction : transactions) {
+                    for (Transaction.Input in : transaction.getInputs()) {
+                        txPool.removeSpender(new UTXO(in.prevTxHash, in.outputIndex));
+                    }
+                }
+            }
+            for (TipListener l : tipListeners)
+                l.tipChanged(block);
+        } else {
+            moveUTXOPoolTo(maxHeightNode);
         }
 
-        // only keep the recent blocks
-        // blocks more(equal) than 10 is a waste of memory
-        if (maxHeightNode.h - oldestBlockHeight >= 9) {
-            Iterator<ByteArrayWrapper> aliveNodesIter = blockChain.keySet().iterator();
-            while (aliveNodesIter.hasNext()) {
-                ByteArrayWrapper key = aliveNodesIter.next();
-                BlockNode aliveNode = blockChain.get(key);
-                if (aliveNode.h <= maxHeightNode.h - 9) {
-                    aliveNodesIter.remove();
+        // only keep the recent blocks, dropping the expired heights bucket by bucket
+        while (maxHeightNode.h - oldestBlockHeight >= RETAINED_HEIGHTS) {
+            ArrayList<BlockNode> expired = heights.get(oldestBlockHeight % heights.size());
+            BlockNode main = maxHeightNode;
+            while (main.h > oldestBlockHeight) {
+                main = main.parent;
+            }
+            if (blockStore != null) {
+                store(expired, main);
+            }
+            for (BlockNode node : expired) {
+                blockChain.remove(node.block.getId());
+                if (node != main) {
+                    removeDescendants(node);
                 }
+                node.parent = null;
+            }
+            // the next height is the oldest now, its blocks all build on main
+            for (BlockNode child : main.children) {
+                child.parent = null;
             }
-            oldestBlockHeight = maxHeightNode.h - 8;
+            main.children.clear();
+            expired.clear();
+            oldestBlockHeight++;
         }
 
         return true;
     }
 
     /**
-     * Add a transaction to the transaction pool
+     * Writes the expired nodes at the oldest height through to the block store, {@code main} being
+     * the one on the main chain, and takes a snapshot of the UTXO set after {@code main} if one is
+     * due. Nothing at or below that height can be built on anymore, and the branches forking below
+     * it are dropped, so {@code main} is final.
+     */
+    private void store(ArrayList<BlockNode> expired, BlockNode main) {
+        try {
+            for (BlockNode node : expired) {
+                blockStore.put(node.block, node == main);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (snapshots != null && snapshots.isDue(main.h)) {
+            // the live set is at the max height block, take the blocks above main off a copy,
+            // which the writer then has to itself
+            UTXOPool state = new UTXOPool(utxoPool);
+            for (BlockNode node = utxoNode; node != main; node = node.parent) {
+                node.undo.disconnect(state);
+            }
+            int height = main.h;
+            byte[] hash = main.block.getHash();
+            lastSnapshot = snapshotWriter.submit(() -> {
+                try {
+                    snapshots.write(height, hash, state);
+                } catch (IOException e) {
+                    snapshotFailure.compareAndSet(null, e);
+                } catch (UncheckedIOException e) {
+                    snapshotFailure.compareAndSet(null, e.getCause());
+                } finally {
+                    state.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until the snapshots due so far are written, which happens in the background.
+     *
+     * @throws IOException the first snapshot write that failed since the last call
      */
-    public void addTransaction(Transaction tx) {
-        txPool.addTransaction(tx);
+    public void flushSnapshots() throws IOException {
+        Future<?> last;
+        lock.readLock().lock();
+        try {
+            last = lastSnapshot;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (last != null) {
+            try {
+                last.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for snapshots");
+            } catch (ExecutionException e) {
+                throw new IOException("snapshot write failed", e.getCause());
+            }
+        }
+        IOException failure = snapshotFailure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Drops every kept block built on {@code node}, a pruned side block. Were they kept, the main
+     * chain could still move onto them, through a block that was already pruned and stored as a
+     * side block; blocks extending them later are kept as orphans until they expire.
+     */
+    private void removeDescendants(BlockNode node) {
+        ArrayDeque<BlockNode> pending = new ArrayDeque<>(node.children);
+        node.children.clear();
+        while (!pending.isEmpty()) {
+            BlockNode d = pending.poll();
+            blockChain.remove(d.block.getId());
+            heights.get(d.h % heights.size()).remove(d);
+            pending.addAll(d.children);
+            d.children.clear();
+            d.parent = null;
+        }
+    }
+
+    private void register(BlockNode node) {
+        blockChain.put(node.block.getId(), node);
+        heights.get(node.h % heights.size()).add(node);
+    }
+
+    /**
+     * Moves the live UTXO set from the state after {@code utxoNode} to the state after
+     * {@code target}: the blocks down to their common ancestor are disconnected, then the blocks
+     * up to {@code target} are connected again from their undo records. The blocks at the oldest
+     * height have no parent node, but they all build on the same pruned block.
+     */
+    private void moveUTXOPoolTo(BlockNode target) {
+        BlockNode from = utxoNode;
+        BlockNode to = target;
+        ArrayList<BlockNode> toConnect = new ArrayList<>();
+        while (from != to) {
+            if (to == null || (from != null && from.h >= to.h)) {
+                from.undo.disconnect(utxoPool);
+                from = from.parent;
+            } else {
+                toConnect.add(to);
+                to = to.parent;
+            }
+        }
+        for (int i = toConnect.size() - 1; i >= 0; i--) {
+            toConnect.get(i).undo.connect(utxoPool);
+        }
+        utxoNode = target;
+    }
+
+    /**
+     * @return the block {@code blockHash}, from memory or else from the block store, or null if it
+     *         is neither kept nor stored
+     */
+    public Block getBlock(byte[] blockHash) {
+        lock.readLock().lock();
+        try {
+            BlockNode node = blockChain.get(Hash256.tryWrap(blockHash));
+            if (node != null)
+                return node.block;
+            return blockStore == null ? null : blockStore.get(blockHash);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a proof that the transaction {@code txHash} is in the block {@code blockHash}, or null
+     *         if that block is neither kept nor stored or does not contain the transaction. The
+     *         proof can be checked with {@link MerkleProof#verify(byte[])} knowing only the block hash.
+     */
+    public MerkleProof getInclusionProof(byte[] blockHash, byte[] txHash) {
+        Block block = getBlock(blockHash);
+        if (block == null)
+            return null;
+        return block.getInclusionProof(txHash);
+    }
+
+    /**
+     * Add a transaction to the transaction pool if it is valid on top of the max height block,
+     * counting the outputs of the transactions already in the pool as spendable
+     *
+     * @return false if it is invalid, conflicts with a transaction already in the pool, or pays
+     *         too little to enter it
+     */
+    public boolean addTransaction(Transaction tx) {
+        if (tx.getId() == null)
+            return false;
+        // held until the transaction is in the pool, so no block can invalidate it in between
+        lock.readLock().lock();
+        try {
+            MempoolUTXOView view = mempoolView(tx);
+            // the fee only needs lookups, so what pays too little is turned away before any
+            // signature is checked
+            long fee = fee(tx, view);
+            if (fee < 0)
+                return false;
+            double minFeeRate = txPool.getMinFeeRate();
+            if (minFeeRate > 0 && (double) fee / tx.getRawTxLength() < minFeeRate)
+                return false;
+            if (!TxHandler.isValidTx(tx, view))
+                return false;
+            return txPool.addTransaction(tx, fee, view.getPoolParents());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return the outputs {@code tx} may spend: the live UTXO set plus the pool's unspent outputs */
+    private MempoolUTXOView mempoolView(Transaction tx) {
+        return new MempoolUTXOView(utxoPool, txPool, tx.getId());
+    }
+
+    /**
+     * @return what {@code tx} pays to the miner, its inputs minus its outputs, or -1 if an input is
+     *         not in {@code view} or the outputs are negative or exceed the inputs
+     */
+    private static long fee(Transaction tx, UTXOLookup view) {
+        long in = 0;
+        for (Transaction.Input input : tx.getInputs()) {
+            Transaction.Output spent = view.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+            if (spent == null || spent.value < 0 || in > Long.MAX_VALUE - spent.value)
+                return -1;
+            in += spent.value;
+        }
+        long out = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0 || out > Long.MAX_VALUE - output.value)
+                return -1;
+            out += output.value;
+        }
+        return out > in ? -1 : in - out;
+    }
+
+    /**
+     * Drops the pool transactions that are no longer valid on top of the max height block, with
+     * the pool transactions spending their outputs. Needed after the max height block moves from
+     * {@code oldTip} to another branch, whose blocks may not create or may already spend what the
+     * pool spends. Pool transactions the new branch confirms are dropped first, on their own,
+     * since their children now spend confirmed outputs.
+     */
+    private void revalidatePool(BlockNode oldTip) {
+        BlockNode node = maxHeightNode;
+        BlockNode old = oldTip;
+        while (node != old) {
+            if (node == null || (old != null && old.h >= node.h)) {
+                old = old.parent;
+            } else {
+                for (Transaction tx : node.block.getTransactions())
+                    txPool.removeTransaction(tx.getHash());
+                node = node.parent;
+            }
+        }
+        for (Transaction tx : txPool.getTransactions()) {
+            if (txPool.getTransaction(tx.getHash()) != tx)
+                continue; // already dropped with an ancestor
+            if (!TxHandler.isValidTx(tx, mempoolView(tx))) {
+                txPool.removeTransaction(tx.getHash());
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    txPool.removeSpender(new UTXO(tx.getId(), i));
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -4,12 +4,22 @@ import java.security.PublicKey;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    private final BlockTemplateBuilder templates;
 
     /**
      * assume blockChain has the genesis block
      */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Blocks created by this handler hold at most {@code maxBlockTxs} pool transactions of at most
+     * {@code maxBlockBytes} bytes in total, the best paying ones first.
+     */
+    public BlockHandler(BlockChain blockChain, int maxBlockTxs, long maxBlockBytes) {
         this.blockChain = blockChain;
+        this.templates = new BlockTemplateBuilder(blockChain, maxBlockTxs, maxBlockBytes);
     }
 
     /**
@@ -27,22 +37,7 @@ public class BlockHandler {
      * create a new {@code block} over the max height {@code block}
      */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-
-
-        byte[] parentHash = parent.getHash();
-
-        Block current = new Block(parentHash, myAddress);
-
-        TransactionPool txPool = blockChain.getTransactionPool();
-
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-
-
-        for (int i = 0; i < txs.length; i++)
-            current.addTransaction(txs[i]);
-
-        current.finalize();
+        Block current = templates.getTemplate(myAddress);
         if (blockChain.addBlock(current))
             return current;
         else
@@ -51,8 +46,10 @@ public class BlockHandler {
 
     /**
      * process a {@code Transaction}
+     *
+     * @return true if it was valid and has been added to the transaction pool
      */
-    public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+    public boolean processTx(Transaction tx) {
+        return blockChain.addTransaction(tx);
     }
 }
@@ -0,0 +1,549 @@
+package block_chain;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only store of blocks on disk, which {@link BlockChain} writes its blocks to as they
+ * are pruned from memory.
+ *
+ * Blocks are appended to segment files {@code blk00000.dat}, {@code blk00001.dat}, ... of at most
+ * a fixed size, each record holding its length, a CRC32 checksum and the block in a compact
+ * binary form: varint counts and values, and each distinct address written once per block. An
+ * {@code index.dat} file next to them maps block hashes to their segment and offset; it is an
+ * open-addressing hash table with linear probing that is memory-mapped, so a lookup touches only
+ * the slots it probes, and a block is read back with one positional read of its record.
+ *
+ * A record is written before the index header records where it ends, and its index entry only
+ * after that, so a record left half-written by a crash is cut off when the store is opened again,
+ * and a complete record whose index entry is missing is skipped and written again by the next
+ * {@link #put} of its block. Writes must not run concurrently with any other call;
+ * {@link BlockChain} only writes while holding its write lock.
+ */
+public class BlockStore implements Closeable {
+
+    /** default size limit of a segment file */
+    public static final int DEFAULT_SEGMENT_BYTES = 128 << 20;
+
+    private static final int SEGMENT_MAGIC = 0x424C4B53; // "BLKS"
+    private static final int INDEX_MAGIC = 0x42494458; // "BIDX"
+    private static final int VERSION = 1;
+
+    // segment header: magic, version
+    private static final int SEGMENT_HEADER = 8;
+    // record header: payload length, CRC32 of the payload; the payload starts with a flags byte
+    private static final int RECORD_HEADER = 8;
+    private static final int MAIN_CHAIN = 1;
+
+    // index header: magic, version, capacity (long), size (long), last segment, end of its last record
+    private static final int HEADER = 64;
+    private static final int CAPACITY_AT = 8;
+    private static final int SIZE_AT = 16;
+    private static final int SEGMENT_AT = 24;
+    private static final int END_AT = 28;
+
+    // slot: used flag, block hash, segment, offset, record length
+    private static final int SLOT = 48;
+    private static final int HASH_AT = 4;
+    private static final int SLOT_SEGMENT_AT = 36;
+    private static final int OFFSET_AT = 40;
+    private static final int LENGTH_AT = 44;
+
+    /** the index is a single mapped region, which cannot exceed 2GB */
+    private static final long MAX_CAPACITY = Integer.MAX_VALUE / SLOT;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final ArrayList<FileChannel> segments = new ArrayList<FileChannel>();
+    /** end of the last record in the last segment */
+    private int end;
+
+    private final File indexFile;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private long capacity;
+    private long size;
+
+    /** Opens the store in {@code dir} with segments of {@link #DEFAULT_SEGMENT_BYTES} */
+    public BlockStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the store in {@code dir}, creating the directory and an empty store if needed. A new
+     * segment is started when a record would take the current one past {@code segmentBytes}.
+     */
+    public BlockStore(File dir, int segmentBytes) throws IOException {
+        if (segmentBytes <= SEGMENT_HEADER)
+            throw new IllegalArgumentException("segment size too small: " + segmentBytes);
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir.toPath());
+        indexFile = new File(dir, "index.dat");
+        indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int last;
+        if (indexChannel.size() >= HEADER) {
+            MappedByteBuffer header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != VERSION)
+                throw new IOException(indexFile + " is not a block index");
+            capacity = header.getLong(CAPACITY_AT);
+            size = header.getLong(SIZE_AT);
+            last = header.getInt(SEGMENT_AT);
+            end = header.getInt(END_AT);
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity * SLOT);
+        } else {
+            if (segmentFile(0).exists())
+                throw new IOException(indexFile + " is missing");
+            capacity = 1024;
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity * SLOT);
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, VERSION);
+            index.putLong(CAPACITY_AT, capacity);
+            last = 0;
+            end = SEGMENT_HEADER;
+        }
+        for (int s = 0; s <= last; s++)
+            segments.add(openSegment(s));
+        // drop whatever was appended after the last indexed record
+        segments.get(last).truncate(end);
+        for (int s = last + 1; segmentFile(s).exists(); s++)
+            Files.delete(segmentFile(s).toPath());
+        setEnd(last, end);
+    }
+
+    /**
+     * Appends the finalized {@code block}, marked as part of the main chain or not.
+     *
+     * @return false if the block is already stored
+     */
+    public boolean put(Block block, boolean mainChain) throws IOException {
+        Hash256 hash = block.getId();
+        if (hash == null)
+            throw new IllegalArgumentException("block is not finalized");
+        if (find(hash.bytes()) >= 0)
+            return false;
+
+        byte[] encoded = encode(block);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + 1 + encoded.length);
+        byte flags = (byte) (mainChain ? MAIN_CHAIN : 0);
+        CRC32 crc = new CRC32();
+        crc.update(flags);
+        crc.update(encoded);
+        record.putInt(1 + encoded.length);
+        record.putInt((int) crc.getValue());
+        record.put(flags);
+        record.put(encoded);
+        record.flip();
+
+        int last = segments.size() - 1;
+        if (end > SEGMENT_HEADER && (long) end + record.remaining() > segmentBytes) {
+            last++;
+            segments.add(openSegment(last));
+            setEnd(last, SEGMENT_HEADER);
+        }
+        int offset = end;
+        writeFully(segments.get(last), record, offset);
+        setEnd(last, offset + record.limit());
+
+        if ((size + 1) * 4 > capacity * 3)
+            rehash(capacity * 2);
+        long slot = hash(hash.bytes()) & (capacity - 1);
+        while (index.getInt(slotAt(slot)) != 0)
+            slot = (slot + 1) & (capacity - 1);
+        int at = slotAt(slot);
+        byte[] bytes = hash.bytes();
+        for (int i = 0; i < Hash256.LENGTH; i++)
+            index.put(at + HASH_AT + i, bytes[i]);
+        index.putInt(at + SLOT_SEGMENT_AT, last);
+        index.putInt(at + OFFSET_AT, offset);
+        index.putInt(at + LENGTH_AT, record.limit());
+        index.putInt(at, 1);
+        size++;
+        index.putLong(SIZE_AT, size);
+        return true;
+    }
+
+    /** @return the block with hash {@code blockHash}, or null if it is not stored */
+    public Block get(byte[] blockHash) throws IOException {
+        if (blockHash == null || blockHash.length != Hash256.LENGTH)
+            return null;
+        long slot = find(blockHash);
+        if (slot < 0)
+            return null;
+        int at = slotAt(slot);
+        int segment = index.getInt(at + SLOT_SEGMENT_AT);
+        int offset = index.getInt(at + OFFSET_AT);
+        ByteBuffer record = ByteBuffer.allocate(index.getInt(at + LENGTH_AT));
+        readFully(segments.get(segment), record, offset);
+        record.flip();
+        Block block = readRecord(record, segment, offset);
+        if (!block.getId().equals(Hash256.wrap(blockHash)))
+            throw new IOException("block at " + segmentFile(segment) + ":" + offset + " does not match its index entry");
+        return block;
+    }
+
+    /**
+     * Reads the main chain blocks stored after the block {@code blockHash} in the order they were
+     * appended, which is the order of their heights, and passes each to {@code action} until it
+     * returns false. Only the segments from that block on are read, record by record.
+     *
+     * @return false if {@code blockHash} is not stored
+     */
+    public boolean forEachMainChainBlockAfter(byte[] blockHash, Predicate<Block> action) throws IOException {
+        if (!contains(blockHash))
+            return false;
+        int at = slotAt(find(blockHash));
+        int segment = index.getInt(at + SLOT_SEGMENT_AT);
+        long position = index.getInt(at + OFFSET_AT) + index.getInt(at + LENGTH_AT);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + 1);
+        for (; segment < segments.size(); segment++, position = SEGMENT_HEADER) {
+            FileChannel channel = segments.get(segment);
+            long limit = segment == segments.size() - 1 ? end : channel.size();
+            while (position < limit) {
+                header.clear();
+                readFully(channel, header, position);
+                long length = RECORD_HEADER + (long) header.getInt(0);
+                if (length <= RECORD_HEADER || position + length > limit)
+                    throw new IOException("bad record length at " + segmentFile(segment) + ":" + position);
+                if ((header.get(RECORD_HEADER) & MAIN_CHAIN) != 0) {
+                    ByteBuffer record = ByteBuffer.allocate((int) length);
+                    readFully(channel, record, position);
+                    record.flip();
+                    Block block = readRecord(record, segment, (int) position);
+                    if (isIndexedAt(block.getHash(), segment, position) && !action.test(block))
+                        return true;
+                }
+                position += length;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if the index entry of {@code blockHash} points at the record at {@code position} */
+    private boolean isIndexedAt(byte[] blockHash, int segment, long position) {
+        long slot = find(blockHash);
+        if (slot < 0)
+            return false;
+        int at = slotAt(slot);
+        return index.getInt(at + SLOT_SEGMENT_AT) == segment && index.getInt(at + OFFSET_AT) == position;
+    }
+
+    public boolean contains(byte[] blockHash) {
+        return blockHash != null && blockHash.length == Hash256.LENGTH && find(blockHash) >= 0;
+    }
+
+    /** @return the number of stored blocks */
+    public long size() {
+        return size;
+    }
+
+    /** Writes all appended blocks and the index through to the disk */
+    public void force() throws IOException {
+        for (FileChannel segment : segments)
+            segment.force(false);
+        index.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        for (FileChannel segment : segments)
+            segment.close();
+        indexChannel.close();
+    }
+
+    /** @return the block in {@code record}, after checking its length and checksum */
+    private Block readRecord(ByteBuffer record, int segment, int offset) throws IOException {
+        String where = segmentFile(segment) + ":" + offset;
+        if (record.remaining() < RECORD_HEADER + 1 || record.getInt() != record.remaining() - Integer.BYTES)
+            throw new IOException("bad record length at " + where);
+        int checksum = record.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("bad checksum at " + where);
+        record.get(); // flags
+        try {
+            return decode(record);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("bad block at " + where, e);
+        }
+    }
+
+    /**
+     * @return {@code block} in the store's binary form: the previous block hash, the table of the
+     *         addresses paid, then the coinbase and the other transactions, each as its inputs
+     *         (previous hash, output index, signature) and its outputs (value, address number)
+     */
+    static byte[] encode(Block block) {
+        IdentityHashMap<PublicKeyTable.Entry, Integer> numbers = new IdentityHashMap<PublicKeyTable.Entry, Integer>();
+        ArrayList<byte[][]> addresses = new ArrayList<byte[][]>();
+        int size = bytesLength(block.getPrevBlockHash()) + Transaction.varintLength(block.getTransactions().size() + 1);
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(block.getTransactions().size() + 1);
+        txs.add(block.getCoinbase());
+        txs.addAll(block.getTransactions());
+        for (Transaction tx : txs) {
+            size += Transaction.varintLength(tx.numInputs()) + Transaction.varintLength(tx.numOutputs());
+            for (Transaction.Input in : tx.getInputs())
+                size += bytesLength(in.prevTxHash) + Transaction.varintLength(in.outputIndex & 0xFFFFFFFFL) + bytesLength(in.signature);
+            for (Transaction.Output out : tx.getOutputs()) {
+                Integer number = numbers.get(out.getAddressEntry());
+                if (number == null) {
+                    byte[][] address = addressBytes(out.getAddressEntry());
+                    number = addresses.size();
+                    numbers.put(out.getAddressEntry(), number);
+                    addresses.add(address);
+                    size += addressLength(address);
+                }
+                size += Transaction.varintLength(out.value) + Transaction.varintLength(number);
+            }
+        }
+        size += Transaction.varintLength(addresses.size());
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        putBytes(buf, block.getPrevBlockHash());
+        Transaction.putVarint(buf, addresses.size());
+        for (byte[][] address : addresses)
+            putAddress(buf, address);
+        Transaction.putVarint(buf, txs.size());
+        for (Transaction tx : txs) {
+            Transaction.putVarint(buf, tx.numInputs());
+            for (Transaction.Input in : tx.getInputs()) {
+                putBytes(buf, in.prevTxHash);
+                Transaction.putVarint(buf, in.outputIndex & 0xFFFFFFFFL);
+                putBytes(buf, in.signature);
+            }
+            Transaction.putVarint(buf, tx.numOutputs());
+            for (Transaction.Output out : tx.getOutputs()) {
+                Transaction.putVarint(buf, out.value);
+                Transaction.putVarint(buf, numbers.get(out.getAddressEntry()));
+            }
+        }
+        return buf.array();
+    }
+
+    /** @return the finalized block {@link #encode} wrote at the position of {@code buf} */
+    static Block decode(ByteBuffer buf) throws IOException {
+        byte[] prevHash = getBytes(buf);
+        PublicKey[] addresses = new PublicKey[count(buf)];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = getAddress(buf);
+        int count = count(buf);
+        if (count == 0)
+            throw new IOException("block without a coinbase");
+        Block block = null;
+        for (int t = 0; t < count; t++) {
+            Transaction tx = new Transaction();
+            int inputs = count(buf);
+            for (int i = 0; i < inputs; i++) {
+                tx.addInput(getBytes(buf), (int) Transaction.getVarint(buf));
+                tx.addSignature(getBytes(buf), i);
+            }
+            int outputs = count(buf);
+            for (int i = 0; i < outputs; i++) {
+                long value = Transaction.getVarint(buf);
+                tx.addOutputUnits(value, addresses[count(buf, addresses.length)]);
+            }
+            if (block == null) {
+                if (inputs != 0 || outputs != 1)
+                    throw new IOException("bad coinbase in block");
+                Transaction.Output out = tx.getOutput(0);
+                block = new Block(prevHash, Transaction.coinbase(out.value, out.address));
+            } else {
+                tx.finalize();
+                block.addTransaction(tx);
+            }
+        }
+        block.finalize();
+        return block;
+    }
+
+    /** @return the algorithm name and X.509 encoding of {@code address}, as {@link #putAddress} writes them */
+    static byte[][] addressBytes(PublicKeyTable.Entry address) {
+        PublicKey key = address.getKey();
+        return new byte[][] { key.getAlgorithm().getBytes(StandardCharsets.UTF_8), key.getEncoded() };
+    }
+
+    static int addressLength(byte[][] address) {
+        return bytesLength(address[0]) + bytesLength(address[1]);
+    }
+
+    static void putAddress(ByteBuffer buf, byte[][] address) {
+        putBytes(buf, address[0]);
+        putBytes(buf, address[1]);
+    }
+
+    /** @return the key {@link #putAddress} wrote at the position of {@code buf} */
+    static PublicKey getAddress(ByteBuffer buf) throws IOException {
+        try {
+            String algorithm = new String(getBytes(buf), StandardCharsets.UTF_8);
+            return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(getBytes(buf)));
+        } catch (GeneralSecurityException | NullPointerException e) {
+            throw new IOException("bad address", e);
+        }
+    }
+
+    /** @return the length {@link #putBytes} writes for {@code b} */
+    static int bytesLength(byte[] b) {
+        return b == null ? 1 : Transaction.varintLength(b.length + 1) + b.length;
+    }
+
+    /** Writes the length of {@code b} plus one, or 0 if it is null, then {@code b} */
+    static void putBytes(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            Transaction.putVarint(buf, 0);
+            return;
+        }
+        Transaction.putVarint(buf, b.length + 1);
+        buf.put(b);
+    }
+
+    static byte[] getBytes(ByteBuffer buf) {
+        int length = count(buf, buf.remaining() + 2);
+        if (length == 0)
+            return null;
+        byte[] b = new byte[length - 1];
+        buf.get(b);
+        return b;
+    }
+
+    /** @return a count, which cannot exceed the bytes left since every counted item takes one */
+    static int count(ByteBuffer buf) {
+        return count(buf, buf.remaining() + 1);
+    }
+
+    /** @return a varint below {@code limit} */
+    static int count(ByteBuffer buf, int limit) {
+        long n = Transaction.getVarint(buf);
+        if (n < 0 || n >= limit)
+            throw new IllegalArgumentException("count out of range: " + n);
+        return (int) n;
+    }
+
+    private long find(byte[] blockHash) {
+        long mask = capacity - 1;
+        for (long slot = hash(blockHash) & mask;; slot = (slot + 1) & mask) {
+            int at = slotAt(slot);
+            if (index.getInt(at) == 0)
+                return -1;
+            if (matches(index, at, blockHash))
+                return slot;
+        }
+    }
+
+    private static boolean matches(ByteBuffer index, int at, byte[] blockHash) {
+        for (int i = 0; i < Hash256.LENGTH; i++) {
+            if (index.get(at + HASH_AT + i) != blockHash[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** block hashes are SHA-256 hashes, so their first 8 bytes are already well mixed */
+    private static long hash(byte[] blockHash) {
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (blockHash[i] & 0xff);
+        return h ^ (h >>> 32);
+    }
+
+    private static int slotAt(long slot) {
+        return HEADER + (int) slot * SLOT;
+    }
+
+    private void setEnd(int segment, int newEnd) {
+        end = newEnd;
+        index.putInt(SEGMENT_AT, segment);
+        index.putInt(END_AT, end);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("blk%05d.dat", segment));
+    }
+
+    /** Opens segment number {@code segment}, writing its header if it is new */
+    private FileChannel openSegment(int segment) throws IOException {
+        File file = segmentFile(segment);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < SEGMENT_HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            header.putInt(SEGMENT_MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header, 0);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != SEGMENT_MAGIC || header.getInt(4) != VERSION)
+                throw new IOException(file + " is not a block segment");
+        }
+        return channel;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        ByteBuffer b = buf.duplicate();
+        while (b.hasRemaining())
+            position += channel.write(b, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("unexpected end of block segment");
+            position += n;
+        }
+    }
+
+    /** Moves every index entry into a new file with {@code newCapacity} slots, which then replaces the old one */
+    private void rehash(long newCapacity) {
+        if (newCapacity > MAX_CAPACITY)
+            throw new IllegalStateException("block index is full");
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try {
+            FileChannel newChannel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer newIndex = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + newCapacity * SLOT);
+            long mask = newCapacity - 1;
+            byte[] blockHash = new byte[Hash256.LENGTH];
+            for (long slot = 0; slot < capacity; slot++) {
+                int from = slotAt(slot);
+                if (index.getInt(from) == 0)
+                    continue;
+                for (int i = 0; i < Hash256.LENGTH; i++)
+                    blockHash[i] = index.get(from + HASH_AT + i);
+                long to = hash(blockHash) & mask;
+                while (newIndex.getInt(slotAt(to)) != 0)
+                    to = (to + 1) & mask;
+                int at = slotAt(to);
+                for (int i = 0; i < SLOT; i += Long.BYTES)
+                    newIndex.putLong(at + i, index.getLong(from + i));
+            }
+            for (int i = 0; i < HEADER; i += Long.BYTES)
+                newIndex.putLong(i, index.getLong(i));
+            newIndex.putLong(CAPACITY_AT, newCapacity);
+            indexChannel.close();
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexChannel = newChannel;
+            index = newIndex;
+            capacity = newCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
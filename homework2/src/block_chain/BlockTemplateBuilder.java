@@ -0,0 +1,120 @@
+package block_chain;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Keeps the transactions of the next block ready between calls to {@link #getTemplate}. Pool
+ * admissions are appended as they happen, together with their leaf in an incrementally built
+ * Merkle tree, so handing out a template copies the list and every level of the tree but only
+ * hashes the new coinbase, into leaf 0 and up to the root, and the block header.
+ *
+ * The pool only admits transactions that are valid on top of the max height block given the
+ * rest of the pool, so the appended transactions always form a valid block without a separate
+ * UTXO overlay. The list is rebuilt from the pool's fee-rate index, at most once per template,
+ * after a transaction in it leaves the pool, after the max height block changes, or after a
+ * transaction did not fit and may pay better than what is in the list.
+ */
+public class BlockTemplateBuilder implements TransactionPool.Listener, BlockChain.TipListener {
+
+    private final BlockChain blockChain;
+    private final TransactionPool txPool;
+    private final int maxTxs;
+    private final long maxBytes;
+
+    private final ArrayList<Transaction> txs = new ArrayList<Transaction>();
+    private final HashSet<Hash256> included = new HashSet<Hash256>();
+    /** leaf 0 stands for the coinbase each template sets, the others are {@code txs} */
+    private MerkleTree merkleTree;
+    private long bytes;
+    /** the block the list was built on, null forces a rebuild */
+    private Block builtOn;
+
+    /**
+     * Creates a builder for blocks on top of {@code blockChain} holding at most {@code maxTxs}
+     * pool transactions of at most {@code maxBytes} serialized bytes, and registers it with the
+     * chain and its pool.
+     */
+    public BlockTemplateBuilder(BlockChain blockChain, int maxTxs, long maxBytes) {
+        this.blockChain = blockChain;
+        this.txPool = blockChain.getTransactionPool();
+        this.maxTxs = maxTxs;
+        this.maxBytes = maxBytes;
+        txPool.addListener(this);
+        blockChain.addTipListener(this);
+    }
+
+    /** @return a finalized block on top of the max height block paying its coinbase to {@code address} */
+    public Block getTemplate(PublicKey address) {
+        while (true) {
+            // read outside the lock, the chain notifies this builder while holding its own lock
+            Block tip = blockChain.getMaxHeightBlock();
+            Block template;
+            synchronized (this) {
+                if (builtOn != tip)
+                    rebuild(tip);
+                template = new Block(tip.getHash(), address, txs, merkleTree);
+            }
+            // if the tip moved meanwhile, the list may hold transactions admitted on the new tip;
+            // if it did not, every transaction in it was admitted on this one
+            if (blockChain.getMaxHeightBlock() == tip) {
+                template.finalize();
+                return template;
+            }
+        }
+    }
+
+    public void transactionAdded(Transaction tx, int size) {
+        // looked up before taking this lock; a parent that has left the pool since tx was added was
+        // either mined, which changes the tip, or removed together with tx, whose removal follows
+        ArrayList<Hash256> poolParents = poolParents(tx);
+        synchronized (this) {
+            if (builtOn == null || included.contains(tx.getId()))
+                return;
+            if (txs.size() >= maxTxs || bytes + size > maxBytes || !included.containsAll(poolParents)) {
+                builtOn = null;
+                return;
+            }
+            append(tx, size);
+        }
+    }
+
+    public synchronized void transactionRemoved(Transaction tx) {
+        if (included.contains(tx.getId()))
+            builtOn = null;
+    }
+
+    public synchronized void tipChanged(Block tip) {
+        builtOn = null;
+    }
+
+    private void rebuild(Block tip) {
+        txs.clear();
+        included.clear();
+        merkleTree = new MerkleTree();
+        merkleTree.add(new byte[Hash256.LENGTH]);
+        bytes = 0;
+        for (Transaction tx : txPool.selectTransactions(maxTxs, maxBytes))
+            append(tx, tx.getRawTxLength());
+        builtOn = tip;
+    }
+
+    private void append(Transaction tx, int size) {
+        txs.add(tx);
+        included.add(tx.getId());
+        merkleTree.add(tx.getHash());
+        bytes += size;
+    }
+
+    /** @return the ids of the pool transactions whose outputs {@code tx} spends */
+    private ArrayList<Hash256> poolParents(Transaction tx) {
+        ArrayList<Hash256> parents = new ArrayList<Hash256>();
+        for (Transaction.Input in : tx.getInputs()) {
+            Hash256 parent = Hash256.tryWrap(in.prevTxHash);
+            if (parent != null && txPool.getTransaction(in.prevTxHash) != null)
+                parents.add(parent);
+        }
+        return parents;
+    }
+}
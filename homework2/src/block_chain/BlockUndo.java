@@ -0,0 +1,62 @@
+package block_chain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The net effect of connecting one block on the UTXO set: the outputs it spent and the outputs it
+ * created. An output created and spent within the same block appears in neither. This is enough
+ * to move a UTXO set across the block in either direction, so the chain keeps one live set instead
+ * of a snapshot per block.
+ */
+public class BlockUndo {
+
+    private final LinkedHashMap<UTXO, Transaction.Output> spent;
+    private final LinkedHashMap<UTXO, Transaction.Output> created;
+
+    public BlockUndo() {
+        spent = new LinkedHashMap<UTXO, Transaction.Output>();
+        created = new LinkedHashMap<UTXO, Transaction.Output>();
+    }
+
+    /** Records that the block spent {@code utxo}, which held {@code txOut} */
+    public void spend(UTXO utxo, Transaction.Output txOut) {
+        if (created.remove(utxo) == null)
+            spent.put(utxo, txOut);
+    }
+
+    /**
+     * Records that the block created {@code utxo} holding {@code txOut}. {@code replaced} is the
+     * output the pool held under {@code utxo} before, or null; two coinbases paying the same address
+     * the same value share a txid, so a block can overwrite an unspent output of an earlier one.
+     */
+    public void create(UTXO utxo, Transaction.Output txOut, Transaction.Output replaced) {
+        if (replaced != null && !created.containsKey(utxo))
+            spent.putIfAbsent(utxo, replaced);
+        created.put(utxo, txOut);
+    }
+
+    /** Applies the block to {@code utxoPool}, which must be at the state of the block's parent */
+    public void connect(UTXOPool utxoPool) {
+        for (UTXO ut : spent.keySet())
+            utxoPool.removeUTXO(ut);
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+            utxoPool.addUTXO(e.getKey(), e.getValue());
+    }
+
+    /** Reverts the block from {@code utxoPool}, which must be at the state right after the block */
+    public void disconnect(UTXOPool utxoPool) {
+        for (UTXO ut : created.keySet())
+            utxoPool.removeUTXO(ut);
+        for (Map.Entry<UTXO, Transaction.Output> e : spent.entrySet())
+            utxoPool.addUTXO(e.getKey(), e.getValue());
+    }
+
+    public Map<UTXO, Transaction.Output> getSpent() {
+        return spent;
+    }
+
+    public Map<UTXO, Transaction.Output> getCreated() {
+        return created;
+    }
+}
@@ -1,37 +1,63 @@
 package block_chain;
-import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 
 public class Crypto {
 
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final SignatureCache SIGNATURE_CACHE = new SignatureCache();
+
+    /**
+     * @return this thread's SHA-256 digest, reset and ready to use. The instance is reused across
+     *         calls, so callers must finish with {@code digest()} before calling this again.
+     */
+    static MessageDigest sha256() {
+        MessageDigest md = SHA_256.get();
+        md.reset();
+        return md;
+    }
+
+    /** verifier for RSA output keys, the default */
+    public static final SignatureVerifier RSA = new JcaSignatureVerifier("SHA256withRSA");
+    /** verifier for Ed25519 output keys, which needs the JDK's built-in EdDSA support (JDK 15+) */
+    public static final SignatureVerifier ED25519 = new JcaSignatureVerifier("Ed25519");
+
+    /** @return the verifier matching the algorithm of {@code pubKey} */
+    public static SignatureVerifier verifierFor(PublicKey pubKey) {
+        String algorithm = pubKey.getAlgorithm();
+        if ("EdDSA".equals(algorithm) || "Ed25519".equals(algorithm))
+            return ED25519;
+        return RSA;
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. RSA keys are checked with SHA256withRSA and Ed25519 keys with
+     *         Ed25519, see {@link #verifierFor(PublicKey)}. Successful checks are remembered in
+     *         {@link #getSignatureCache()} and are not repeated.
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
+        if (pubKey == null || message == null || signature == null)
+            return false;
+        Hash256 key = SignatureCache.key(pubKey, message, signature);
+        if (SIGNATURE_CACHE.contains(key))
+            return true;
+        if (!verifierFor(pubKey).verify(pubKey, message, signature))
+            return false;
+        SIGNATURE_CACHE.add(key);
+        return true;
+    }
 
+    /** @return the cache of successful signature checks shared by mempool and block validation */
+    public static SignatureCache getSignatureCache() {
+        return SIGNATURE_CACHE;
     }
 }
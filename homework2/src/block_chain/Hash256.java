@@ -0,0 +1,77 @@
+package block_chain;
+
+import java.util.Arrays;
+
+/**
+ * An immutable 32-byte hash, such as a transaction or block hash, for use as a map key. The hash
+ * code is computed once, equality is a single {@link Arrays#equals} call that the JIT vectorizes,
+ * and hashes that are already final can be wrapped without copying.
+ */
+public final class Hash256 implements Comparable<Hash256> {
+
+    public static final int LENGTH = 32;
+
+    private final byte[] bytes;
+    private final int hash;
+
+    private Hash256(byte[] bytes) {
+        if (bytes.length != LENGTH)
+            throw new IllegalArgumentException("hash must be " + LENGTH + " bytes");
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    /** @return a hash holding a copy of {@code b} */
+    public static Hash256 of(byte[] b) {
+        return new Hash256(b.clone());
+    }
+
+    /**
+     * @return a hash sharing {@code b}, which must not be modified afterwards: a finalized hash,
+     *         a freshly computed digest, or a key that is only used for one lookup
+     */
+    static Hash256 wrap(byte[] b) {
+        return new Hash256(b);
+    }
+
+    /** @return {@code wrap(b)}, or null if {@code b} is null or not 32 bytes long */
+    static Hash256 tryWrap(byte[] b) {
+        return b == null || b.length != LENGTH ? null : new Hash256(b);
+    }
+
+    /** @return a copy of the hash bytes */
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    /** @return the hash bytes themselves, which must not be modified */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof Hash256))
+            return false;
+        Hash256 h = (Hash256) other;
+        return hash == h.hash && Arrays.equals(bytes, h.bytes);
+    }
+
+    /** the same as {@code Arrays.hashCode} of the bytes, which {@link UTXO} relies on */
+    public int hashCode() {
+        return hash;
+    }
+
+    /** Orders hashes as unsigned big-endian numbers */
+    public int compareTo(Hash256 other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(2 * LENGTH);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package block_chain;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * A {@link SignatureVerifier} backed by a JCA signature algorithm. Each thread keeps its own
+ * {@code Signature} instance, so the provider lookup in {@code Signature.getInstance} happens once
+ * per thread instead of once per check.
+ */
+public class JcaSignatureVerifier implements SignatureVerifier {
+
+    private final String algorithm;
+    private final ThreadLocal<Signature> signatures;
+
+    public JcaSignatureVerifier(String algorithm) {
+        this.algorithm = algorithm;
+        signatures = new ThreadLocal<Signature>();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        try {
+            Signature sig = signatures.get();
+            if (sig == null) {
+                sig = Signature.getInstance(algorithm);
+                signatures.set(sig);
+            }
+            sig.initVerify(pubKey);
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (NoSuchAlgorithmException e) {
+            // e.g. Ed25519 on a JDK older than 15
+            return false;
+        } catch (GeneralSecurityException e) {
+            // a malformed key or signature is just an invalid signature
+            return false;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package block_chain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A {@link UTXOStore} kept off the heap in a memory-mapped file, so a large UTXO set costs page
+ * cache instead of Java objects and GC time.
+ *
+ * The file is an open-addressing hash table with linear probing and fixed-width slots holding
+ * the 32-byte txid, the output index, the value and the id of the address in a key table. Each
+ * distinct address is stored once, in a {@code .keys} file next to the table. Lookups read the
+ * mapped slots directly, so {@link #contains} allocates nothing; {@link #get} only allocates the
+ * returned output. The table doubles into a new file when it is three quarters full.
+ *
+ * Copies ({@link #copy()}) take constant time: they read through to the file, and the store keeps
+ * the old output of every entry it changes for each copy until the copy is released with
+ * {@link UTXOStore#release()}, so a copy costs heap in proportion to the changes made on either
+ * side since it was taken, and a copy that is never released makes every later change pay for
+ * it. New keys are appended to the key file through a buffer, flushed by {@link #force()}. All methods of the store and
+ * its copies synchronize on the store, so copies can be read by other threads while it changes.
+ */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    private static final int MAGIC = 0x5554584F; // "UTXO"
+    /** version 1 stored values as double coins, version 2 as long base units */
+    private static final int VERSION = 2;
+
+    // header: magic, version, capacity (long), size (long)
+    private static final int HEADER = 64;
+    private static final int CAPACITY_AT = 8;
+    private static final int SIZE_AT = 16;
+
+    // slot: used flag, txid, output index, value, key id, padding
+    private static final int SLOT = 56;
+    private static final int TXID_AT = 4;
+    private static final int INDEX_AT = 36;
+    private static final int VALUE_AT = 40;
+    private static final int KEY_AT = 48;
+    private static final int TXID_LENGTH = 32;
+
+    /** slots per mapped region, a MappedByteBuffer cannot exceed 2GB */
+    private static final int SLOTS_PER_REGION = (1 << 30) / SLOT;
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] regions;
+    private long capacity;
+    private long size;
+
+    private final ArrayList<PublicKeyTable.Entry> keys;
+    /** local key id + 1 of each {@link PublicKeyTable} id, or 0 if the key is not in this file yet */
+    private int[] keyIds;
+    private final DataOutputStream keysOut;
+
+    /** the copies taken and not yet released, which need the entries this store changes */
+    private final ArrayList<Copy> copies = new ArrayList<Copy>();
+
+    /**
+     * Opens the store in {@code file}, creating it with room for {@code initialCapacity} slots
+     * (rounded up to a power of two) if it does not exist yet.
+     */
+    public MappedUTXOStore(File file, long initialCapacity) throws IOException {
+        this.file = file;
+        keys = new ArrayList<PublicKeyTable.Entry>();
+        keyIds = new int[0];
+        File keyFile = new File(file.getPath() + ".keys");
+        if (keyFile.exists())
+            readKeys(keyFile);
+        keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keyFile, true)));
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() >= HEADER) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            if (header.getInt(0) != MAGIC || header.getInt(4) < 1 || header.getInt(4) > VERSION)
+                throw new IOException(file + " is not a UTXO store");
+            capacity = header.getLong(CAPACITY_AT);
+            size = header.getLong(SIZE_AT);
+            regions = map(channel, capacity);
+            if (header.getInt(4) == 1)
+                upgradeValues();
+        } else {
+            capacity = Long.highestOneBit(Math.max(16, initialCapacity - 1)) << 1;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(CAPACITY_AT, capacity);
+            header.putLong(SIZE_AT, 0);
+            regions = map(channel, capacity);
+        }
+    }
+
+    public synchronized Transaction.Output get(UTXO utxo) {
+        return read(utxo);
+    }
+
+    private Transaction.Output read(UTXO utxo) {
+        long slot = find(utxo.getTxHash(), utxo.getIndex());
+        if (slot < 0)
+            return null;
+        ByteBuffer region = region(slot);
+        int off = offset(slot);
+        return new Transaction.Output(region.getLong(off + VALUE_AT), keys.get(region.getInt(off + KEY_AT)));
+    }
+
+    public synchronized boolean contains(UTXO utxo) {
+        return find(utxo.getTxHash(), utxo.getIndex()) >= 0;
+    }
+
+    public synchronized void put(UTXO utxo, Transaction.Output txOut) {
+        preserve(utxo);
+        byte[] txHash = utxo.getTxHash();
+        long slot = find(txHash, utxo.getIndex());
+        if (slot < 0) {
+            if ((size + 1) * 4 > capacity * 3)
+                rehash(capacity * 2);
+            slot = hash(txHash, utxo.getIndex()) & (capacity - 1);
+            while (region(slot).getInt(offset(slot)) != 0)
+                slot = (slot + 1) & (capacity - 1);
+            ByteBuffer region = region(slot);
+            int off = offset(slot);
+            region.putInt(off, 1);
+            for (int i = 0; i < TXID_LENGTH; i++)
+                region.put(off + TXID_AT + i, txHash[i]);
+            region.putInt(off + INDEX_AT, utxo.getIndex());
+            setSize(size + 1);
+        }
+        ByteBuffer region = region(slot);
+        int off = offset(slot);
+        region.putLong(off + VALUE_AT, txOut.value);
+        region.putInt(off + KEY_AT, keyId(txOut.getAddressEntry()));
+    }
+
+    public synchronized void remove(UTXO utxo) {
+        long hole = find(utxo.getTxHash(), utxo.getIndex());
+        if (hole < 0)
+            return;
+        preserve(utxo);
+        // backward shift deletion: pull later entries of the probe run into the hole when their
+        // home slot does not lie between the hole and their current slot
+        long mask = capacity - 1;
+        long next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            ByteBuffer region = region(next);
+            int off = offset(next);
+            if (region.getInt(off) == 0)
+                break;
+            long home = hashAt(region, off) & mask;
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (stays)
+                continue;
+            copySlot(next, hole);
+            hole = next;
+        }
+        region(hole).putInt(offset(hole), 0);
+        setSize(size - 1);
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    public synchronized ArrayList<UTXO> keys() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>();
+        byte[] txHash = new byte[TXID_LENGTH];
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer region = region(slot);
+            int off = offset(slot);
+            if (region.getInt(off) == 0)
+                continue;
+            for (int i = 0; i < TXID_LENGTH; i++)
+                txHash[i] = region.get(off + TXID_AT + i);
+            all.add(new UTXO(txHash, region.getInt(off + INDEX_AT)));
+        }
+        return all;
+    }
+
+    /** @return a copy that reads through to this store for the entries neither side has changed */
+    public synchronized UTXOStore copy() {
+        return track(new Copy(size()));
+    }
+
+    /** Writes all changes through to the file, the keys first so no forced slot refers to a lost one */
+    public synchronized void force() throws IOException {
+        keysOut.flush();
+        header.force();
+        for (MappedByteBuffer region : regions)
+            region.force();
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        keysOut.close();
+        channel.close();
+    }
+
+    private Copy track(Copy copy) {
+        copies.add(copy);
+        return copy;
+    }
+
+    /** Hands the output stored for {@code utxo} to every copy that has not seen it change yet */
+    private void preserve(UTXO utxo) {
+        if (copies.isEmpty())
+            return;
+        boolean read = false;
+        Transaction.Output current = null;
+        for (Copy copy : copies) {
+            if (!copy.before.containsKey(utxo)) {
+                if (!read) {
+                    current = read(utxo);
+                    read = true;
+                }
+                copy.before.put(utxo, current);
+            }
+        }
+    }
+
+    /**
+     * A copy of the store: its own changes, over the outputs the store changed after the copy was
+     * taken as they were then, over the file.
+     */
+    private final class Copy implements UTXOStore {
+        /** entries the store changed since the copy was taken, null if there was none */
+        final HashMap<UTXO, Transaction.Output> before = new HashMap<UTXO, Transaction.Output>();
+        /** entries changed in the copy, null if removed */
+        final HashMap<UTXO, Transaction.Output> changed = new HashMap<UTXO, Transaction.Output>();
+        int size;
+        boolean released;
+
+        Copy(int size) {
+            this.size = size;
+        }
+
+        private void checkLive() {
+            if (released)
+                throw new IllegalStateException("copy already released");
+        }
+
+        public Transaction.Output get(UTXO utxo) {
+            synchronized (MappedUTXOStore.this) {
+                checkLive();
+                if (changed.containsKey(utxo))
+                    return changed.get(utxo);
+                if (before.containsKey(utxo))
+                    return before.get(utxo);
+                return read(utxo);
+            }
+        }
+
+        public boolean contains(UTXO utxo) {
+            return get(utxo) != null;
+        }
+
+        public void put(UTXO utxo, Transaction.Output txOut) {
+            synchronized (MappedUTXOStore.this) {
+                if (get(utxo) == null)
+                    size++;
+                changed.put(utxo, txOut);
+            }
+        }
+
+        public void remove(UTXO utxo) {
+            synchronized (MappedUTXOStore.this) {
+                if (get(utxo) == null)
+                    return;
+                size--;
+                changed.put(utxo, null);
+            }
+        }
+
+        public int size() {
+            synchronized (MappedUTXOStore.this) {
+                checkLive();
+                return size;
+            }
+        }
+
+        public ArrayList<UTXO> keys() {
+            synchronized (MappedUTXOStore.this) {
+                checkLive();
+                HashSet<UTXO> all = new HashSet<UTXO>(MappedUTXOStore.this.keys());
+                for (HashMap<UTXO, Transaction.Output> layer : Arrays.asList(before, changed)) {
+                    for (Map.Entry<UTXO, Transaction.Output> e : layer.entrySet()) {
+                        if (e.getValue() == null)
+                            all.remove(e.getKey());
+                        else
+                            all.add(e.getKey());
+                    }
+                }
+                return new ArrayList<UTXO>(all);
+            }
+        }
+
+        public UTXOStore copy() {
+            synchronized (MappedUTXOStore.this) {
+                checkLive();
+                Copy copy = new Copy(size);
+                copy.before.putAll(before);
+                copy.changed.putAll(changed);
+                return track(copy);
+            }
+        }
+
+        public void release() {
+            synchronized (MappedUTXOStore.this) {
+                if (released)
+                    return;
+                released = true;
+                copies.remove(this);
+                before.clear();
+                changed.clear();
+            }
+        }
+    }
+
+    private long find(byte[] txHash, int index) {
+        if (txHash.length != TXID_LENGTH)
+            throw new IllegalArgumentException("txid must be " + TXID_LENGTH + " bytes");
+        long mask = capacity - 1;
+        for (long slot = hash(txHash, index) & mask;; slot = (slot + 1) & mask) {
+            ByteBuffer region = region(slot);
+            int off = offset(slot);
+            if (region.getInt(off) == 0)
+                return -1;
+            if (matches(region, off, txHash, index))
+                return slot;
+        }
+    }
+
+    private static boolean matches(ByteBuffer region, int off, byte[] txHash, int index) {
+        if (region.getInt(off + INDEX_AT) != index)
+            return false;
+        for (int i = 0; i < TXID_LENGTH; i++) {
+            if (region.get(off + TXID_AT + i) != txHash[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** txids are SHA-256 hashes, so their first 8 bytes are already well mixed */
+    private static long hash(byte[] txHash, int index) {
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (txHash[i] & 0xff);
+        return mix(h, index);
+    }
+
+    private static long hashAt(ByteBuffer region, int off) {
+        return mix(region.getLong(off + TXID_AT), region.getInt(off + INDEX_AT));
+    }
+
+    private static long mix(long h, int index) {
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private ByteBuffer region(long slot) {
+        return regions[(int) (slot / SLOTS_PER_REGION)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot % SLOTS_PER_REGION) * SLOT;
+    }
+
+    private void copySlot(long from, long to) {
+        ByteBuffer src = region(from);
+        ByteBuffer dst = region(to);
+        int srcOff = offset(from);
+        int dstOff = offset(to);
+        for (int i = 0; i < SLOT; i += Long.BYTES)
+            dst.putLong(dstOff + i, src.getLong(srcOff + i));
+    }
+
+    private void setSize(long newSize) {
+        size = newSize;
+        header.putLong(SIZE_AT, size);
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long capacity) throws IOException {
+        int count = (int) ((capacity + SLOTS_PER_REGION - 1) / SLOTS_PER_REGION);
+        MappedByteBuffer[] regions = new MappedByteBuffer[count];
+        for (int r = 0; r < count; r++) {
+            long first = (long) r * SLOTS_PER_REGION;
+            long slots = Math.min(SLOTS_PER_REGION, capacity - first);
+            regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + first * SLOT, slots * SLOT);
+        }
+        return regions;
+    }
+
+    /** Moves every entry into a new file with {@code newCapacity} slots, which then replaces the old one */
+    private void rehash(long newCapacity) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileChannel newChannel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer newHeader = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            MappedByteBuffer[] newRegions = map(newChannel, newCapacity);
+            long mask = newCapacity - 1;
+            for (long slot = 0; slot < capacity; slot++) {
+                ByteBuffer src = region(slot);
+                int srcOff = offset(slot);
+                if (src.getInt(srcOff) == 0)
+                    continue;
+                long to = hashAt(src, srcOff) & mask;
+                while (newRegions[(int) (to / SLOTS_PER_REGION)].getInt(offset(to)) != 0)
+                    to = (to + 1) & mask;
+                ByteBuffer dst = newRegions[(int) (to / SLOTS_PER_REGION)];
+                int dstOff = offset(to);
+                for (int i = 0; i < SLOT; i += Long.BYTES)
+                    dst.putLong(dstOff + i, src.getLong(srcOff + i));
+            }
+            newHeader.putInt(0, MAGIC);
+            newHeader.putInt(4, VERSION);
+            newHeader.putLong(CAPACITY_AT, newCapacity);
+            newHeader.putLong(SIZE_AT, size);
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = newChannel;
+            header = newHeader;
+            regions = newRegions;
+            capacity = newCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Rewrites the double coin values of a version 1 file as base units, in place */
+    private void upgradeValues() {
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer region = region(slot);
+            int off = offset(slot);
+            if (region.getInt(off) != 0)
+                region.putLong(off + VALUE_AT, Transaction.toUnits(region.getDouble(off + VALUE_AT)));
+        }
+        header.putInt(4, VERSION);
+    }
+
+    /** @return the id of {@code address} in the key table, appending it if it is new */
+    private int keyId(PublicKeyTable.Entry address) {
+        if (address.getId() < keyIds.length && keyIds[address.getId()] != 0)
+            return keyIds[address.getId()] - 1;
+        try {
+            PublicKey key = address.getKey();
+            byte[] algorithm = key.getAlgorithm().getBytes("UTF-8");
+            byte[] encoded = key.getEncoded();
+            keysOut.writeInt(algorithm.length);
+            keysOut.write(algorithm);
+            keysOut.writeInt(encoded.length);
+            keysOut.write(encoded);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return register(address);
+    }
+
+    /** Adds {@code address} to the in-memory key table */
+    private int register(PublicKeyTable.Entry address) {
+        if (address.getId() >= keyIds.length)
+            keyIds = Arrays.copyOf(keyIds, Math.max(address.getId() + 1, keyIds.length * 2));
+        keys.add(address);
+        keyIds[address.getId()] = keys.size();
+        return keys.size() - 1;
+    }
+
+    private void readKeys(File keyFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(keyFile)))) {
+            while (true) {
+                byte[] algorithm;
+                byte[] encoded;
+                try {
+                    algorithm = new byte[in.readInt()];
+                    in.readFully(algorithm);
+                    encoded = new byte[in.readInt()];
+                    in.readFully(encoded);
+                } catch (EOFException e) {
+                    return;
+                }
+                PublicKey key = KeyFactory.getInstance(new String(algorithm, "UTF-8"))
+                        .generatePublic(new X509EncodedKeySpec(encoded));
+                register(PublicKeyTable.intern(key));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("bad key in " + keyFile, e);
+        }
+    }
+}
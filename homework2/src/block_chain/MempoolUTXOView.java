@@ -0,0 +1,45 @@
+package block_chain;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link UTXOLookup} showing the outputs a new pool transaction may spend: the outputs
+ * of the live UTXO set and of the pool's transactions, minus those already spent by another pool
+ * transaction. Nothing is copied, every lookup goes to the live set and the pool directly, so the
+ * view must only be used while neither changes underneath it.
+ */
+final class MempoolUTXOView implements UTXOLookup {
+
+    private final UTXOPool live;
+    private final TransactionPool pool;
+    /** the transaction being checked, its own entry in the pool does not count as a spender */
+    private final Hash256 self;
+    /** the pool transactions whose outputs were looked up */
+    private final HashSet<Hash256> poolParents = new HashSet<Hash256>();
+
+    MempoolUTXOView(UTXOPool live, TransactionPool pool, Hash256 self) {
+        this.live = live;
+        this.pool = pool;
+        this.self = self;
+    }
+
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Transaction spender = pool.getSpender(utxo);
+        if (spender != null && !spender.getId().equals(self))
+            return null;
+        Transaction.Output out = live.getTxOutput(utxo);
+        if (out != null)
+            return out;
+        Transaction parent = pool.getTransaction(utxo.getTxHash());
+        if (parent == null || utxo.getIndex() < 0 || utxo.getIndex() >= parent.numOutputs())
+            return null;
+        poolParents.add(parent.getId());
+        return parent.getOutput(utxo.getIndex());
+    }
+
+    /** @return the pool transactions that outputs were found in, so far */
+    Set<Hash256> getPoolParents() {
+        return poolParents;
+    }
+}
@@ -0,0 +1,74 @@
+package block_chain;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Proof that a transaction is committed to by a block, made of the log2(n) sibling hashes between
+ * the transaction and the block's Merkle root. It can be checked against a block hash alone,
+ * without the block's transactions.
+ */
+public class MerkleProof {
+
+    private final byte[] txHash;
+    private final int index;
+    /** number of transactions in the block, which fixes the shape of the tree */
+    private final int count;
+    private final ArrayList<byte[]> path;
+    private final byte[] prevBlockHash;
+
+    public MerkleProof(byte[] txHash, int index, int count, List<byte[]> path, byte[] prevBlockHash) {
+        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this.index = index;
+        this.count = count;
+        this.path = new ArrayList<byte[]>(path);
+        this.prevBlockHash = prevBlockHash;
+    }
+
+    /** @return the hash of the proven transaction */
+    public byte[] getTxHash() {
+        return txHash;
+    }
+
+    /** @return the position of the proven transaction in its block */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return the number of transactions in the block */
+    public int getCount() {
+        return count;
+    }
+
+    /** @return the sibling hashes from the transaction up to the Merkle root */
+    public ArrayList<byte[]> getPath() {
+        return path;
+    }
+
+    /** @return the previous block hash of the block the proof was made for */
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    /**
+     * @return the Merkle root implied by this proof, or null if the index is not below the count or
+     *         the path length does not fit the tree's shape
+     */
+    public byte[] getMerkleRoot() {
+        return MerkleTree.computeRoot(txHash, index, count, path);
+    }
+
+    /** @return true if this proof shows the transaction is in the block with hash {@code blockHash} */
+    public boolean verify(byte[] blockHash) {
+        byte[] merkleRoot = getMerkleRoot();
+        if (merkleRoot == null)
+            return false;
+        MessageDigest md = Crypto.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(merkleRoot);
+        return Arrays.equals(md.digest(), blockHash);
+    }
+}
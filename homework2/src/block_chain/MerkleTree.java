@@ -0,0 +1,148 @@
+package block_chain;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary Merkle tree over transaction hashes that grows one leaf at a time. Every level of the
+ * tree is kept, so appending a leaf only rehashes the nodes on the path from that leaf to the
+ * root.
+ *
+ * Leaves are hashed with a 0 byte prefix and inner nodes with a 1 byte prefix, so a leaf can never
+ * pass for an inner node, and a node without a right sibling moves up a level unchanged instead
+ * of being paired with itself. Pairing it with itself would give {@code [a, b, c]} and
+ * {@code [a, b, c, c]} the same root, so a block with a duplicated transaction would share the
+ * hash of the valid one.
+ */
+public class MerkleTree {
+
+    /** root of a tree without any leaves */
+    private static final byte[] EMPTY_ROOT = new byte[32];
+    private static final byte LEAF = 0;
+    private static final byte INNER = 1;
+
+    /** {@code levels.get(0)} holds the leaf nodes and the last level holds only the root */
+    private final ArrayList<ArrayList<byte[]>> levels;
+
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** Creates a copy of {@code tree} that can grow independently; the node hashes are shared */
+    public MerkleTree(MerkleTree tree) {
+        levels = new ArrayList<ArrayList<byte[]>>(tree.levels.size());
+        for (ArrayList<byte[]> level : tree.levels)
+            levels.add(new ArrayList<byte[]>(level));
+    }
+
+    /** @return the number of leaves in the tree */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** Appends the transaction hash {@code leaf} and rehashes its ancestors */
+    public void add(byte[] leaf) {
+        levels.get(0).add(hashLeaf(leaf));
+        rehash(size() - 1);
+    }
+
+    /** Replaces leaf {@code index} with the transaction hash {@code leaf} and rehashes its ancestors */
+    public void set(int index, byte[] leaf) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("no leaf at " + index);
+        levels.get(0).set(index, hashLeaf(leaf));
+        rehash(index);
+    }
+
+    /** Recomputes the ancestors of leaf {@code pos}, adding levels as the tree grows */
+    private void rehash(int pos) {
+        for (int d = 0; levels.get(d).size() > 1; d++) {
+            ArrayList<byte[]> level = levels.get(d);
+            if (d + 1 == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> parents = levels.get(d + 1);
+            int parent = pos / 2;
+            byte[] left = level.get(2 * parent);
+            byte[] node = 2 * parent + 1 < level.size() ? hashPair(left, level.get(2 * parent + 1)) : left;
+            if (parent < parents.size())
+                parents.set(parent, node);
+            else
+                parents.add(node);
+            pos = parent;
+        }
+    }
+
+    /** @return the root of the tree, or 32 zero bytes if it has no leaves */
+    public byte[] getRoot() {
+        if (size() == 0)
+            return EMPTY_ROOT.clone();
+        return levels.get(levels.size() - 1).get(0);
+    }
+
+    /**
+     * @return the sibling of every node on the path from leaf {@code index} to the root, starting
+     *         at the leaf's level; levels where the node moves up unchanged have no entry
+     */
+    public ArrayList<byte[]> getPath(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("no leaf at " + index);
+        ArrayList<byte[]> path = new ArrayList<byte[]>();
+        for (int d = 0; d < levels.size() - 1; d++) {
+            ArrayList<byte[]> level = levels.get(d);
+            int sibling = index ^ 1;
+            if (sibling < level.size())
+                path.add(level.get(sibling));
+            index /= 2;
+        }
+        return path;
+    }
+
+    /** @return the number of siblings on the path from leaf {@code index} of {@code count} to the root */
+    static int pathLength(int index, int count) {
+        int length = 0;
+        for (int width = count; width > 1; width = (width + 1) / 2) {
+            if ((index ^ 1) < width)
+                length++;
+            index /= 2;
+        }
+        return length;
+    }
+
+    /**
+     * @return the root reached by hashing the transaction hash {@code leaf} at {@code index} of
+     *         {@code count} leaves up along {@code path}, or null if there is no leaf at
+     *         {@code index} or the path does not have one entry for each level where the node has
+     *         a sibling
+     */
+    public static byte[] computeRoot(byte[] leaf, int index, int count, List<byte[]> path) {
+        if (index < 0 || index >= count || path.size() != pathLength(index, count))
+            return null;
+        byte[] node = hashLeaf(leaf);
+        int used = 0;
+        for (int width = count; width > 1; width = (width + 1) / 2) {
+            if ((index ^ 1) < width) {
+                byte[] sibling = path.get(used++);
+                node = (index & 1) == 0 ? hashPair(node, sibling) : hashPair(sibling, node);
+            }
+            index /= 2;
+        }
+        return node;
+    }
+
+    static byte[] hashLeaf(byte[] txHash) {
+        MessageDigest md = Crypto.sha256();
+        md.update(LEAF);
+        md.update(txHash);
+        return md.digest();
+    }
+
+    static byte[] hashPair(byte[] left, byte[] right) {
+        MessageDigest md = Crypto.sha256();
+        md.update(INNER);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+}
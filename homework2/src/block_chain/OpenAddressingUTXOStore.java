@@ -0,0 +1,190 @@
+package block_chain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An in-memory {@link UTXOStore} laid out in primitive arrays: an open-addressing table with
+ * linear probing whose keys are the four longs of the txid and the output index. Lookups read the
+ * txid straight out of the UTXO's hash array, so probing creates no key objects and compares
+ * longs instead of bytes. Outputs are stored as columns too, the value in base units and the
+ * {@link PublicKeyTable} id of the address, so the table itself holds no object references. The
+ * store counts the outputs of each id and keeps that id's entry while the count is above zero,
+ * since the key table would otherwise drop it. Copies clone the arrays, so this store suits a
+ * pool updated in place.
+ */
+public class OpenAddressingUTXOStore implements UTXOStore {
+
+    private long[] txids;
+    private int[] indexes;
+    private long[] values;
+    /** key table id of each output's address plus one, 0 marks an empty slot */
+    private int[] keys;
+    private int size;
+    /** entry of each key table id in use, indexed by id */
+    private PublicKeyTable.Entry[] entries;
+    /** number of stored outputs paying each key table id */
+    private int[] uses;
+
+    public OpenAddressingUTXOStore() {
+        this(16);
+    }
+
+    /** Creates a store with room for {@code expected} entries before it grows */
+    public OpenAddressingUTXOStore(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 4 / 3)) << 1;
+        txids = new long[capacity * 4];
+        indexes = new int[capacity];
+        values = new long[capacity];
+        keys = new int[capacity];
+        entries = new PublicKeyTable.Entry[16];
+        uses = new int[16];
+    }
+
+    private OpenAddressingUTXOStore(OpenAddressingUTXOStore other) {
+        txids = other.txids.clone();
+        indexes = other.indexes.clone();
+        values = other.values.clone();
+        keys = other.keys.clone();
+        size = other.size;
+        entries = other.entries.clone();
+        uses = other.uses.clone();
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        int slot = find(utxo.getTxHash(), utxo.getIndex());
+        return slot < 0 ? null : new Transaction.Output(values[slot], entries[keys[slot] - 1]);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return find(utxo.getTxHash(), utxo.getIndex()) >= 0;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        int slot = find(txHash, utxo.getIndex());
+        int key = hold(txOut.getAddressEntry());
+        if (slot >= 0) {
+            release(keys[slot]);
+            values[slot] = txOut.value;
+            keys[slot] = key;
+            return;
+        }
+        if ((size + 1) * 4 > keys.length * 3)
+            resize(keys.length * 2);
+        insert(OutPoint.word(txHash, 0), OutPoint.word(txHash, 1), OutPoint.word(txHash, 2), OutPoint.word(txHash, 3),
+                utxo.getIndex(), txOut.value, key);
+        size++;
+    }
+
+    public void remove(UTXO utxo) {
+        int hole = find(utxo.getTxHash(), utxo.getIndex());
+        if (hole < 0)
+            return;
+        release(keys[hole]);
+        // backward shift deletion, as in MappedUTXOStore
+        int mask = keys.length - 1;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keys[next] == 0)
+                break;
+            int home = OutPoint.hash(txids[next * 4], indexes[next]) & mask;
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (stays)
+                continue;
+            System.arraycopy(txids, next * 4, txids, hole * 4, 4);
+            indexes[hole] = indexes[next];
+            values[hole] = values[next];
+            keys[hole] = keys[next];
+            hole = next;
+        }
+        keys[hole] = 0;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                int k = slot * 4;
+                all.add(new OutPoint(txids[k], txids[k + 1], txids[k + 2], txids[k + 3], indexes[slot]).toUTXO());
+            }
+        }
+        return all;
+    }
+
+    public UTXOStore copy() {
+        return new OpenAddressingUTXOStore(this);
+    }
+
+    /** Counts one more output paying {@code address} and returns its key column value */
+    private int hold(PublicKeyTable.Entry address) {
+        int id = address.getId();
+        if (id >= uses.length) {
+            int length = Math.max(uses.length * 2, id + 1);
+            entries = Arrays.copyOf(entries, length);
+            uses = Arrays.copyOf(uses, length);
+        }
+        if (uses[id]++ == 0)
+            entries[id] = address;
+        return id + 1;
+    }
+
+    /** Counts one output less for the key column value {@code key} */
+    private void release(int key) {
+        if (--uses[key - 1] == 0)
+            entries[key - 1] = null;
+    }
+
+    private int find(byte[] txHash, int index) {
+        if (txHash.length != OutPoint.TXID_LENGTH)
+            throw new IllegalArgumentException("txid must be " + OutPoint.TXID_LENGTH + " bytes");
+        long h0 = OutPoint.word(txHash, 0);
+        int mask = keys.length - 1;
+        for (int slot = OutPoint.hash(h0, index) & mask;; slot = (slot + 1) & mask) {
+            if (keys[slot] == 0)
+                return -1;
+            int k = slot * 4;
+            if (indexes[slot] == index && txids[k] == h0 && txids[k + 1] == OutPoint.word(txHash, 1)
+                    && txids[k + 2] == OutPoint.word(txHash, 2) && txids[k + 3] == OutPoint.word(txHash, 3))
+                return slot;
+        }
+    }
+
+    private void insert(long h0, long h1, long h2, long h3, int index, long value, int key) {
+        int mask = keys.length - 1;
+        int slot = OutPoint.hash(h0, index) & mask;
+        while (keys[slot] != 0)
+            slot = (slot + 1) & mask;
+        int k = slot * 4;
+        txids[k] = h0;
+        txids[k + 1] = h1;
+        txids[k + 2] = h2;
+        txids[k + 3] = h3;
+        indexes[slot] = index;
+        values[slot] = value;
+        keys[slot] = key;
+    }
+
+    private void resize(int capacity) {
+        long[] oldTxids = txids;
+        int[] oldIndexes = indexes;
+        long[] oldValues = values;
+        int[] oldKeys = keys;
+        txids = new long[capacity * 4];
+        indexes = new int[capacity];
+        values = new long[capacity];
+        keys = new int[capacity];
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                int k = slot * 4;
+                insert(oldTxids[k], oldTxids[k + 1], oldTxids[k + 2], oldTxids[k + 3], oldIndexes[slot], oldValues[slot], oldKeys[slot]);
+            }
+        }
+    }
+}
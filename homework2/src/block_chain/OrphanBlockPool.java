@@ -0,0 +1,110 @@
+package block_chain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Blocks that arrived before their parent, indexed by the hash of the missing parent so they can
+ * be connected as soon as it shows up. The pool is bounded by a number of blocks and an estimate
+ * of their size, and blocks that waited longer than a maximum age are dropped; either way the
+ * oldest go first.
+ */
+public class OrphanBlockPool {
+
+    private static final class Orphan {
+        final Block block;
+        final Hash256 parent;
+        final long bytes;
+        final long arrived;
+
+        Orphan(Block block, long arrived) {
+            this.block = block;
+            this.parent = Hash256.of(block.getPrevBlockHash());
+            long bytes = 0;
+            for (Transaction tx : block.getTransactions())
+                bytes += tx.getRawTxLength();
+            this.bytes = bytes;
+            this.arrived = arrived;
+        }
+    }
+
+    private final int maxBlocks;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    /** every orphan by its own hash, oldest first */
+    private final LinkedHashMap<Hash256, Orphan> byHash = new LinkedHashMap<Hash256, Orphan>();
+    private final HashMap<Hash256, ArrayList<Orphan>> byParent = new HashMap<Hash256, ArrayList<Orphan>>();
+    private long bytes;
+
+    public OrphanBlockPool(int maxBlocks, long maxBytes, long maxAgeMillis) {
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Keeps {@code block}, whose parent is unknown, making room by dropping the oldest orphans.
+     *
+     * @return false if the block is already kept, has no valid parent hash, or cannot fit at all
+     */
+    public boolean add(Block block) {
+        Hash256 hash = block.getId();
+        if (hash == null || Hash256.tryWrap(block.getPrevBlockHash()) == null || byHash.containsKey(hash))
+            return false;
+        long now = System.currentTimeMillis();
+        Orphan orphan = new Orphan(block, now);
+        if (orphan.bytes > maxBytes || maxBlocks <= 0)
+            return false;
+        expire(now);
+        while (byHash.size() >= maxBlocks || bytes + orphan.bytes > maxBytes)
+            remove(byHash.values().iterator().next());
+        byHash.put(hash, orphan);
+        byParent.computeIfAbsent(orphan.parent, k -> new ArrayList<Orphan>()).add(orphan);
+        bytes += orphan.bytes;
+        return true;
+    }
+
+    /** @return the orphans waiting for the block {@code parent}, which are no longer kept */
+    public ArrayList<Block> removeChildren(Hash256 parent) {
+        ArrayList<Block> children = new ArrayList<Block>();
+        ArrayList<Orphan> waiting = byParent.get(parent);
+        if (waiting == null)
+            return children;
+        for (Orphan orphan : new ArrayList<Orphan>(waiting)) {
+            remove(orphan);
+            children.add(orphan.block);
+        }
+        return children;
+    }
+
+    public boolean contains(Hash256 hash) {
+        return byHash.containsKey(hash);
+    }
+
+    public int size() {
+        return byHash.size();
+    }
+
+    /** Drops the orphans that arrived more than the maximum age before {@code now} */
+    private void expire(long now) {
+        Iterator<Orphan> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Orphan oldest = it.next();
+            if (now - oldest.arrived <= maxAgeMillis)
+                return;
+            remove(oldest);
+            it = byHash.values().iterator();
+        }
+    }
+
+    private void remove(Orphan orphan) {
+        byHash.remove(orphan.block.getId());
+        ArrayList<Orphan> siblings = byParent.get(orphan.parent);
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            byParent.remove(orphan.parent);
+        bytes -= orphan.bytes;
+    }
+}
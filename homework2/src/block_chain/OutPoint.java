@@ -0,0 +1,101 @@
+package block_chain;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * A compact, immutable reference to a transaction output: a SHA-256 txid held as four longs plus
+ * the output index. The hash code is computed once, and equality compares five primitives instead
+ * of walking two byte arrays.
+ */
+public final class OutPoint implements Comparable<OutPoint> {
+
+    public static final int TXID_LENGTH = 32;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+    private final int index;
+    private final int hash;
+
+    public OutPoint(byte[] txHash, int index) {
+        if (txHash.length != TXID_LENGTH)
+            throw new IllegalArgumentException("txid must be " + TXID_LENGTH + " bytes");
+        h0 = word(txHash, 0);
+        h1 = word(txHash, 1);
+        h2 = word(txHash, 2);
+        h3 = word(txHash, 3);
+        this.index = index;
+        hash = hash(h0, index);
+    }
+
+    OutPoint(long h0, long h1, long h2, long h3, int index) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+        this.index = index;
+        hash = hash(h0, index);
+    }
+
+    public OutPoint(UTXO utxo) {
+        this(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /** @return the {@code i}th big-endian long of a 32-byte txid, read without allocating */
+    static long word(byte[] txHash, int i) {
+        return (long) LONGS.get(txHash, i * Long.BYTES);
+    }
+
+    /** txids are SHA-256 hashes, so any one of their words is already well mixed */
+    static int hash(long h0, int index) {
+        long h = h0 ^ (index * 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public byte[] getTxHash() {
+        byte[] txHash = new byte[TXID_LENGTH];
+        LONGS.set(txHash, 0, h0);
+        LONGS.set(txHash, 8, h1);
+        LONGS.set(txHash, 16, h2);
+        LONGS.set(txHash, 24, h3);
+        return txHash;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public UTXO toUTXO() {
+        return new UTXO(getTxHash(), index);
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof OutPoint))
+            return false;
+        OutPoint op = (OutPoint) other;
+        return hash == op.hash && index == op.index && h0 == op.h0 && h1 == op.h1 && h2 == op.h2 && h3 == op.h3;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    /** Orders by txid, compared as unsigned bytes, then by index */
+    public int compareTo(OutPoint op) {
+        int c = Long.compareUnsigned(h0, op.h0);
+        if (c == 0)
+            c = Long.compareUnsigned(h1, op.h1);
+        if (c == 0)
+            c = Long.compareUnsigned(h2, op.h2);
+        if (c == 0)
+            c = Long.compareUnsigned(h3, op.h3);
+        if (c == 0)
+            c = Integer.compare(index, op.index);
+        return c;
+    }
+}
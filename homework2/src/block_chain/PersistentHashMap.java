@@ -0,0 +1,299 @@
+package block_chain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash array mapped trie. {@link #plus} and {@link #minus} return a new map that
+ * shares every untouched node with the old one, so a copy is free and an update only allocates
+ * the O(log32 n) nodes on the path to the changed entry.
+ */
+public final class PersistentHashMap<K, V> {
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<Object, Object>(new Node(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** @return the value mapped to {@code key}, or null if there is none */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        int hash = hash(key);
+        Object slot = root;
+        for (int shift = 0;; shift += 5) {
+            if (slot instanceof Node) {
+                Node node = (Node) slot;
+                int bit = 1 << ((hash >>> shift) & 31);
+                if ((node.bitmap & bit) == 0)
+                    return null;
+                slot = node.slots[node.index(bit)];
+            } else if (slot instanceof Entry) {
+                Entry e = (Entry) slot;
+                return e.hash == hash && e.key.equals(key) ? (V) e.value : null;
+            } else {
+                Entry e = ((Collision) slot).find(hash, key);
+                return e == null ? null : (V) e.value;
+            }
+        }
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /** @return a map with {@code key} mapped to {@code value}, which must not be null */
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.put(0, new Entry(hash(key), key, value), added);
+        if (newRoot == root)
+            return this;
+        return new PersistentHashMap<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /** @return a map without {@code key} */
+    public PersistentHashMap<K, V> minus(K key) {
+        int hash = hash(key);
+        Object newRoot = root.remove(0, hash, key);
+        if (newRoot == root)
+            return this;
+        if (newRoot == null)
+            return empty();
+        return new PersistentHashMap<K, V>(Node.wrap(newRoot, 0), size - 1);
+    }
+
+    /** Calls {@code action} on every entry, in no particular order */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /** @return all keys, in no particular order */
+    public ArrayList<K> keys() {
+        ArrayList<K> keys = new ArrayList<K>(size);
+        forEach((k, v) -> keys.add(k));
+        return keys;
+    }
+
+    private static int hash(Object key) {
+        // the trie consumes the hash 5 bits at a time from the bottom, and the multiply only carries
+        // bits upwards, so fold the mixed high half back into the low bits the top levels use;
+        // both steps are invertible, so keys with different hash codes keep different hashes
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final int hash;
+        final Object key;
+        final Object value;
+
+        Entry(int hash, Object key, Object value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            action.accept(key, value);
+        }
+    }
+
+    /** entries whose keys have the same full 32-bit hash */
+    private static final class Collision {
+        final int hash;
+        final Entry[] entries;
+
+        Collision(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        Entry find(int hash, Object key) {
+            if (hash != this.hash)
+                return null;
+            for (Entry e : entries) {
+                if (e.key.equals(key))
+                    return e;
+            }
+            return null;
+        }
+
+        Collision put(Entry entry, boolean[] added) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(entry.key)) {
+                    if (entries[i].value == entry.value)
+                        return this;
+                    Entry[] copy = entries.clone();
+                    copy[i] = entry;
+                    return new Collision(hash, copy);
+                }
+            }
+            Entry[] copy = Arrays.copyOf(entries, entries.length + 1);
+            copy[entries.length] = entry;
+            added[0] = true;
+            return new Collision(hash, copy);
+        }
+
+        /** @return this, a smaller collision, or the last remaining entry */
+        Object remove(int hash, Object key) {
+            if (hash != this.hash)
+                return this;
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    if (entries.length == 2)
+                        return entries[1 - i];
+                    Entry[] copy = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, copy, 0, i);
+                    System.arraycopy(entries, i + 1, copy, i, entries.length - i - 1);
+                    return new Collision(hash, copy);
+                }
+            }
+            return this;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Entry e : entries)
+                action.accept(e.key, e.value);
+        }
+    }
+
+    /** a trie level; each set bit of {@code bitmap} owns a slot holding an Entry, Collision or Node */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        /** @return a node at {@code shift} holding just {@code slot}, or {@code slot} if it already is one */
+        static Node wrap(Object slot, int shift) {
+            if (slot instanceof Node)
+                return (Node) slot;
+            int hash = slot instanceof Entry ? ((Entry) slot).hash : ((Collision) slot).hash;
+            return new Node(1 << ((hash >>> shift) & 31), new Object[] { slot });
+        }
+
+        Node put(int shift, Entry entry, boolean[] added) {
+            int bit = 1 << ((entry.hash >>> shift) & 31);
+            int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, copy, 0, idx);
+                copy[idx] = entry;
+                System.arraycopy(slots, idx, copy, idx + 1, slots.length - idx);
+                added[0] = true;
+                return new Node(bitmap | bit, copy);
+            }
+            Object slot = slots[idx];
+            Object updated;
+            if (slot instanceof Node) {
+                updated = ((Node) slot).put(shift + 5, entry, added);
+            } else if (slot instanceof Entry) {
+                Entry e = (Entry) slot;
+                if (e.hash == entry.hash && e.key.equals(entry.key)) {
+                    updated = e.value == entry.value ? e : entry;
+                } else {
+                    added[0] = true;
+                    updated = merge(shift + 5, e, e.hash, entry);
+                }
+            } else {
+                Collision c = (Collision) slot;
+                if (c.hash == entry.hash) {
+                    updated = c.put(entry, added);
+                } else {
+                    added[0] = true;
+                    updated = merge(shift + 5, c, c.hash, entry);
+                }
+            }
+            if (updated == slot)
+                return this;
+            Object[] copy = slots.clone();
+            copy[idx] = updated;
+            return new Node(bitmap, copy);
+        }
+
+        /** @return a subtree at {@code shift} holding both {@code existing} and {@code entry} */
+        static Object merge(int shift, Object existing, int existingHash, Entry entry) {
+            if (existingHash == entry.hash) {
+                // only plain entries reach here, collisions with the same hash are extended above
+                return new Collision(entry.hash, new Entry[] { (Entry) existing, entry });
+            }
+            int bit1 = 1 << ((existingHash >>> shift) & 31);
+            int bit2 = 1 << ((entry.hash >>> shift) & 31);
+            if (bit1 == bit2)
+                return new Node(bit1, new Object[] { merge(shift + 5, existing, existingHash, entry) });
+            Object[] pair = Integer.compareUnsigned(bit1, bit2) < 0 ? new Object[] { existing, entry } : new Object[] { entry, existing };
+            return new Node(bit1 | bit2, pair);
+        }
+
+        /**
+         * @return this if {@code key} is absent, null if the node became empty, a lone Entry or
+         *         Collision for the parent to inline, or the updated node
+         */
+        Object remove(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object slot = slots[idx];
+            Object updated;
+            if (slot instanceof Node) {
+                updated = ((Node) slot).remove(shift + 5, hash, key);
+            } else if (slot instanceof Entry) {
+                Entry e = (Entry) slot;
+                updated = e.hash == hash && e.key.equals(key) ? null : e;
+            } else {
+                updated = ((Collision) slot).remove(hash, key);
+            }
+            if (updated == slot)
+                return this;
+            if (updated == null) {
+                if (slots.length == 1)
+                    return null;
+                Object[] copy = new Object[slots.length - 1];
+                System.arraycopy(slots, 0, copy, 0, idx);
+                System.arraycopy(slots, idx + 1, copy, idx, slots.length - idx - 1);
+                if (copy.length == 1 && !(copy[0] instanceof Node))
+                    return copy[0];
+                return new Node(bitmap & ~bit, copy);
+            }
+            if (slots.length == 1 && !(updated instanceof Node))
+                return updated;
+            Object[] copy = slots.clone();
+            copy[idx] = updated;
+            return new Node(bitmap, copy);
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Node)
+                    ((Node) slot).forEach(action);
+                else if (slot instanceof Entry)
+                    ((Entry) slot).forEach(action);
+                else
+                    ((Collision) slot).forEach(action);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package block_chain;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The process-wide table of distinct output addresses. Each key gets a small integer id the first
+ * time it is seen, together with its serialized form and a hash code computed once. Outputs refer
+ * to their entry, so comparing or serializing an address never touches the RSA modulus again.
+ * Ids are only meaningful within one process.
+ *
+ * The table holds its entries weakly: an entry stays as long as an output or a UTXO store refers
+ * to it, and once it is collected its key is dropped and its id is given to the next new key.
+ */
+public final class PublicKeyTable {
+
+    /** an interned address */
+    public static final class Entry {
+        private final int id;
+        private final PublicKey key;
+        private final byte[] encoded;
+        private final int hash;
+
+        private Entry(int id, PublicKey key) {
+            this.id = id;
+            this.key = key;
+            this.encoded = encode(key);
+            this.hash = Arrays.hashCode(encoded);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /** @return the first key interned with this value */
+        public PublicKey getKey() {
+            return key;
+        }
+
+        /**
+         * @return the bytes the address contributes to a serialized transaction. The array is
+         *         shared and must not be modified.
+         */
+        byte[] getEncoded() {
+            return encoded;
+        }
+
+        public int getHash() {
+            return hash;
+        }
+    }
+
+    /** weak reference to an entry that remembers where the entry was filed */
+    private static final class Ref extends WeakReference<Entry> {
+        final int id;
+        final PublicKey key;
+
+        Ref(Entry e) {
+            super(e, collected);
+            id = e.id;
+            key = e.key;
+        }
+    }
+
+    private static final ReferenceQueue<Entry> collected = new ReferenceQueue<Entry>();
+    private static final ConcurrentHashMap<PublicKey, Ref> byKey = new ConcurrentHashMap<PublicKey, Ref>();
+    private static volatile Ref[] byId = new Ref[64];
+    /** ids below {@code next} that were freed, {@code freeCount} of them */
+    private static int[] free = new int[16];
+    private static int freeCount;
+    private static int next;
+
+    private PublicKeyTable() {
+    }
+
+    /** @return the entry for {@code key}, adding it to the table if it is new */
+    public static Entry intern(PublicKey key) {
+        Entry e = live(byKey.get(key));
+        if (e != null)
+            return e;
+        synchronized (PublicKeyTable.class) {
+            expunge();
+            e = live(byKey.get(key));
+            if (e != null)
+                return e;
+            int id = freeCount > 0 ? free[--freeCount] : next++;
+            e = new Entry(id, key);
+            Ref[] refs = byId;
+            if (id == refs.length)
+                refs = Arrays.copyOf(refs, id * 2);
+            Ref ref = new Ref(e);
+            refs[id] = ref;
+            byId = refs;
+            byKey.put(key, ref);
+            return e;
+        }
+    }
+
+    /** @return the entry with id {@code id}, or null if no entry holds that id */
+    public static Entry get(int id) {
+        Ref[] refs = byId;
+        return id < refs.length ? live(refs[id]) : null;
+    }
+
+    /** @return the number of entries still held */
+    public static synchronized int size() {
+        expunge();
+        return next - freeCount;
+    }
+
+    private static Entry live(Ref ref) {
+        return ref == null ? null : ref.get();
+    }
+
+    /** Drops the keys of collected entries and frees their ids; the caller holds the class lock */
+    private static void expunge() {
+        for (Ref ref = (Ref) collected.poll(); ref != null; ref = (Ref) collected.poll()) {
+            byKey.remove(ref.key, ref);
+            byId[ref.id] = null;
+            if (freeCount == free.length)
+                free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = ref.id;
+        }
+    }
+
+    /**
+     * RSA keys are encoded as the public exponent followed by the modulus, as transactions always
+     * have been; any other key type such as Ed25519 uses its X.509 encoding.
+     */
+    private static byte[] encode(PublicKey key) {
+        if (!(key instanceof RSAPublicKey))
+            return key.getEncoded();
+        byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+        byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+        byte[] encoded = Arrays.copyOf(exponent, exponent.length + modulus.length);
+        System.arraycopy(modulus, 0, encoded, exponent.length, modulus.length);
+        return encoded;
+    }
+}
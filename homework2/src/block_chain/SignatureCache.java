@@ -0,0 +1,97 @@
+package block_chain;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe record of signatures that have already been verified successfully, so a
+ * transaction seen by the mempool and again by every block (and fork) that includes it only pays
+ * for its signature checks once. Entries are keyed by a digest of the public key, the signed data
+ * and the signature, so a hit means exactly this check passed before. Failed checks are never
+ * recorded.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private final int capacity;
+    private final ConcurrentHashMap<Hash256, Boolean> verified;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SignatureCache(int capacity) {
+        this.capacity = capacity;
+        verified = new ConcurrentHashMap<Hash256, Boolean>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /** @return true if {@code signature} was already found valid for {@code message} under {@code pubKey} */
+    public boolean contains(PublicKey pubKey, byte[] message, byte[] signature) {
+        return contains(key(pubKey, message, signature));
+    }
+
+    /** Records that {@code signature} is valid for {@code message} under {@code pubKey} */
+    public void add(PublicKey pubKey, byte[] message, byte[] signature) {
+        add(key(pubKey, message, signature));
+    }
+
+    /** @return true if the check digested into {@code key} passed before */
+    boolean contains(Hash256 key) {
+        if (verified.containsKey(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /** Records that the check digested into {@code key} passed */
+    void add(Hash256 key) {
+        verified.put(key, Boolean.TRUE);
+        // evict arbitrary entries once over capacity, the digests spread them over the table, but
+        // keep the one just added
+        Iterator<Hash256> it = verified.keySet().iterator();
+        while (verified.size() > capacity && it.hasNext()) {
+            if (!it.next().equals(key))
+                it.remove();
+        }
+    }
+
+    public int size() {
+        return verified.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        verified.clear();
+    }
+
+    /** @return the digest identifying the check of {@code signature} on {@code message} under {@code pubKey} */
+    static Hash256 key(PublicKey pubKey, byte[] message, byte[] signature) {
+        MessageDigest md = Crypto.sha256();
+        byte[] encodedKey = PublicKeyTable.intern(pubKey).getEncoded();
+        ByteBuffer lengths = ByteBuffer.allocate(3 * Integer.BYTES);
+        lengths.putInt(encodedKey.length).putInt(message.length).putInt(signature.length);
+        md.update(lengths.array());
+        md.update(encodedKey);
+        md.update(message);
+        md.update(signature);
+        return Hash256.wrap(md.digest());
+    }
+}
@@ -0,0 +1,13 @@
+package block_chain;
+
+import java.security.PublicKey;
+
+/** Checks signatures made with one type of output key, see {@link Crypto#verifierFor(PublicKey)} */
+public interface SignatureVerifier {
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}, and false if it is not or cannot be checked
+     */
+    boolean verify(PublicKey pubKey, byte[] message, byte[] signature);
+}
@@ -2,14 +2,17 @@ package block_chain;
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Transaction {
 
+    /** base units per coin; output values are whole numbers of base units */
+    public static final long COIN = 100_000_000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -69,15 +72,28 @@ public class Transaction {
         }
     }
 
-    public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+    /** An output; it cannot change once created, since transactions cache their serialized outputs */
+    public static class Output {
+        /** value of the output in base units */
+        public final long value;
         /** the address or public key of the recipient */
-        public PublicKey address;
+        public final PublicKey address;
+        /** {@code address} in the {@link PublicKeyTable} */
+        private final PublicKeyTable.Entry interned;
+
+        public Output(long v, PublicKey addr) {
+            this(v, PublicKeyTable.intern(addr));
+        }
 
-        public Output(double v, PublicKey addr) {
+        Output(long v, PublicKeyTable.Entry addr) {
             value = v;
-            address = addr;
+            interned = addr;
+            address = addr.getKey();
+        }
+
+        /** @return the interned entry of {@code address} */
+        public PublicKeyTable.Entry getAddressEntry() {
+            return interned;
         }
 
         public boolean equals(Object other) {
@@ -92,29 +108,26 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            return getAddressEntry() == op.getAddressEntry();
         }
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 17 + Long.hashCode(value);
+            hash = hash * 31 + getAddressEntry().getHash();
             return hash;
         }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** {@code hash} as a map key, see {@link #getId()} */
+    private Hash256 id;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
+    /** cached serialization of {@code outputs}, see {@link #getRawOutputs()} */
+    private byte[] rawOutputs;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -129,15 +142,38 @@ public class Transaction {
         coinbase = false;
     }
 
-    /** create a coinbase transaction of value {@code coin} and calls finalize on it */
+    /**
+     * create a coinbase transaction of {@code coin} coins and calls finalize on it. Kept for
+     * callers that still count in coins, see {@link #toUnits}.
+     */
     public Transaction(double coin, PublicKey address) {
-        coinbase = true;
+        this(toUnits(coin), address, true);
+    }
+
+    private Transaction(long value, PublicKey address, boolean coinbase) {
+        this.coinbase = coinbase;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
-        addOutput(coin, address);
+        addOutputUnits(value, address);
         finalize();
     }
 
+    /** @return a finalized coinbase transaction paying {@code value} base units to {@code address} */
+    public static Transaction coinbase(long value, PublicKey address) {
+        return new Transaction(value, address, true);
+    }
+
+    /**
+     * @return {@code coins} in base units, rounded to the nearest unit. This is the compatibility
+     *         path for amounts that were carried as doubles.
+     */
+    public static long toUnits(double coins) {
+        double units = Math.rint(coins * COIN);
+        if (Double.isNaN(units) || Math.abs(units) >= 0x1p63)
+            throw new IllegalArgumentException("not a valid amount: " + coins);
+        return (long) units;
+    }
+
     public boolean isCoinbase() {
         return coinbase;
     }
@@ -147,9 +183,16 @@ public class Transaction {
         inputs.add(in);
     }
 
+    /** adds an output of {@code value} coins, see {@link #toUnits} */
     public void addOutput(double value, PublicKey address) {
+        addOutputUnits(toUnits(value), address);
+    }
+
+    /** adds an output of {@code value} base units */
+    public void addOutputUnits(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        rawOutputs = null;
     }
 
     public void removeInput(int index) {
@@ -169,37 +212,20 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        byte[] rawOutputs = getRawOutputs();
+        int size = Integer.BYTES + rawOutputs.length;
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            size += prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(size);
+        if (prevTxHash != null)
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(rawOutputs);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -207,50 +233,90 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] rawOutputs = getRawOutputs();
+        ByteBuffer rawTx = ByteBuffer.allocate(getRawTxLength());
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
+        }
+        rawTx.put(rawOutputs);
+        return rawTx.array();
+    }
+
+    /** @return the length of {@link #getRawTx()}, without building it once the outputs are serialized */
+    public int getRawTxLength() {
+        int size = getRawOutputs().length;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            size += Integer.BYTES;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        return size;
+    }
+
+    /**
+     * @return the serialized outputs (varint value and encoded address of each), which end both
+     *         the raw transaction and the data signed by every input. They are computed once and
+     *         shared until {@link #addOutput} is called; outputs cannot be edited otherwise.
+     */
+    private byte[] getRawOutputs() {
+        byte[] raw = rawOutputs;
+        if (raw != null)
+            return raw;
+        byte[][] addresses = new byte[outputs.size()][];
+        int size = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            addresses[i] = outputs.get(i).getAddressEntry().getEncoded();
+            size += varintLength(outputs.get(i).value) + addresses[i].length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < outputs.size(); i++) {
+            putVarint(buf, outputs.get(i).value);
+            buf.put(addresses[i]);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        raw = buf.array();
+        rawOutputs = raw;
+        return raw;
     }
 
-    public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+    /** @return the number of bytes {@link #putVarint} writes for {@code value} */
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+            length++;
+        return length;
+    }
+
+    /** Writes {@code value} 7 bits at a time, low bits first, setting the top bit of all but the last byte */
+    static void putVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) (value | 0x80));
+            value >>>= 7;
         }
+        buf.put((byte) value);
+    }
+
+    /** @return the value {@link #putVarint} wrote at the position of {@code buf} */
+    static long getVarint(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("varint longer than 64 bits");
+    }
+
+    public void finalize() {
+        MessageDigest md = Crypto.sha256();
+        md.update(getRawTx());
+        hash = md.digest();
     }
 
     public void setHash(byte[] h) {
@@ -261,12 +327,28 @@ public class Transaction {
         return hash;
     }
 
+    /**
+     * @return the hash as a {@link Hash256}, or null if the transaction has no hash yet. It shares
+     *         the array returned by {@link #getHash()}, which must not be modified.
+     */
+    public Hash256 getId() {
+        Hash256 h = id;
+        if (hash == null)
+            return null;
+        if (h == null || h.bytes() != hash) {
+            h = Hash256.wrap(hash);
+            id = h;
+        }
+        return h;
+    }
+
     public ArrayList<Input> getInputs() {
         return inputs;
     }
 
-    public ArrayList<Output> getOutputs() {
-        return outputs;
+    /** @return the outputs, which can only be added through {@link #addOutput} */
+    public List<Output> getOutputs() {
+        return Collections.unmodifiableList(outputs);
     }
 
     public Input getInput(int index) {
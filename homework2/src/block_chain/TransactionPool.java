@@ -1,39 +1,452 @@
 package block_chain;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The pool of transactions waiting to be mined. It is safe for concurrent use: admissions claim
+ * the outpoints they spend with {@code putIfAbsent}, so any number of threads can check for
+ * conflicts at once, and {@link #selectTransactions} reads a snapshot fixed by admission order
+ * without blocking them. Publishing an admitted transaction, removing one and evicting take a
+ * lock, so an admission cannot slip in beside a parent being evicted. The changes are queued for
+ * the listeners under that lock, in the order they are made, and delivered once it is released,
+ * so listeners see every transaction added before it is removed and may lock anything they like.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /** a pool transaction with the fee and serialized size computed when it was admitted */
+    private static final class Entry {
+        final Transaction tx;
+        final Hash256 hash;
+        /** input value minus output value, in base units, as given to {@link #addTransaction(Transaction, long)} */
+        final long fee;
+        final int size;
+        /** admission order, breaks ties between equal fee rates in favour of older transactions */
+        final long seq;
+        /** estimated heap bytes held by the entry, see {@link #getUsage()} */
+        final long usage;
+
+        Entry(Transaction tx, long fee, int size, long seq) {
+            this.tx = tx;
+            this.hash = tx.getId();
+            this.fee = fee;
+            this.size = size;
+            this.seq = seq;
+            this.usage = ENTRY_OVERHEAD + tx.numInputs() * INPUT_OVERHEAD + tx.numOutputs() * OUTPUT_OVERHEAD + 2L * size;
+        }
+
+        double feeRate() {
+            return (double) fee / size;
+        }
+    }
+
+    /** best paying first */
+    private static final Comparator<Entry> BY_FEE_RATE = (a, b) -> {
+        int c = Double.compare(b.feeRate(), a.feeRate());
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    };
+
+    // rough heap cost of an entry beyond its data: the Transaction, Entry, map and tree nodes, and
+    // per input the Input, its arrays and the spender index entry, per output the Output
+    private static final long ENTRY_OVERHEAD = 320;
+    private static final long INPUT_OVERHEAD = 160;
+    private static final long OUTPUT_OVERHEAD = 48;
+
+    /** how much the minimum fee rate is raised above the rate of an evicted transaction, per byte */
+    public static final double INCREMENTAL_FEE_RATE = 1;
+    /** time for the minimum fee rate to halve while the pool is at least half full */
+    public static final long MIN_FEE_HALF_LIFE_MILLIS = 12 * 60 * 60 * 1000;
+
+    /**
+     * Notified of the pool's changes in the order they were made, after the pool's lock is
+     * released, one change at a time. A change may be delivered by another thread changing the
+     * pool at the same time, so the pool may already have moved on; listeners may call back into it.
+     */
+    public interface Listener {
+        /** {@code tx} was admitted; {@code size} is its serialized length */
+        void transactionAdded(Transaction tx, int size);
+
+        /** {@code tx} left the pool, because it was mined, evicted, conflicted or became invalid */
+        void transactionRemoved(Transaction tx);
+    }
+
+    /** the minimum fee rate and when it was last raised or decayed */
+    private static final class MinFee {
+        final double rate;
+        final long time;
+
+        MinFee(double rate, long time) {
+            this.rate = rate;
+            this.time = time;
+        }
+    }
+
+    private static final MinFee NO_MIN_FEE = new MinFee(0, 0);
+
+    private final ConcurrentHashMap<Hash256, Entry> H;
+    /** hash of the pool transaction spending each outpoint */
+    private final ConcurrentHashMap<UTXO, Hash256> spenders;
+    private final ConcurrentSkipListSet<Entry> byFeeRate;
+    private final AtomicLong nextSeq;
+    private final long maxBytes;
+    private final AtomicLong usage;
+    /** fee rate below which transactions are turned away, raised by evictions and decaying over time */
+    private final AtomicReference<MinFee> minFee;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    /** notifications queued under the pool's lock and not delivered yet */
+    private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+    /** set while a thread delivers {@code events}, so they go out one at a time and in order */
+    private final AtomicBoolean dispatching = new AtomicBoolean();
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(Long.MAX_VALUE);
+    }
+
+    /** Creates a pool that evicts its lowest paying transactions to stay within {@code maxBytes} */
+    public TransactionPool(long maxBytes) {
+        H = new ConcurrentHashMap<Hash256, Entry>();
+        spenders = new ConcurrentHashMap<UTXO, Hash256>();
+        byFeeRate = new ConcurrentSkipListSet<Entry>(BY_FEE_RATE);
+        nextSeq = new AtomicLong();
+        this.maxBytes = maxBytes;
+        usage = new AtomicLong();
+        minFee = new AtomicReference<MinFee>(NO_MIN_FEE);
     }
 
+    /**
+     * Creates a copy of {@code txPool} without its listeners; if it is being updated concurrently,
+     * some updates may be missed
+     */
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = new ConcurrentHashMap<Hash256, Entry>(txPool.H);
+        spenders = new ConcurrentHashMap<UTXO, Hash256>(txPool.spenders);
+        byFeeRate = new ConcurrentSkipListSet<Entry>(txPool.byFeeRate);
+        nextSeq = new AtomicLong(txPool.nextSeq.get());
+        maxBytes = txPool.maxBytes;
+        usage = new AtomicLong(txPool.usage.get());
+        minFee = new AtomicReference<MinFee>(txPool.minFee.get());
+    }
+
+    /** Adds {@code tx} with an unknown fee, see {@link #addTransaction(Transaction, long)} */
+    public boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx} as {@link #addTransaction(Transaction, long, Collection)} does, spending from
+     * the pool transactions that are in the pool now.
+     */
+    public boolean addTransaction(Transaction tx, long fee) {
+        ArrayList<Hash256> parents = new ArrayList<Hash256>();
+        for (Transaction.Input in : tx.getInputs()) {
+            Hash256 parent = Hash256.tryWrap(in.prevTxHash);
+            if (parent != null && H.containsKey(parent))
+                parents.add(parent);
+        }
+        return addTransaction(tx, fee, parents);
+    }
+
+    /**
+     * Adds {@code tx}, which pays {@code fee} base units, to the pool unless it pays less than the
+     * minimum fee rate, spends an outpoint that another pool transaction already spends, or one of
+     * {@code poolParents}, the pool transactions it was validated against, has left the pool.
+     * Re-adding a transaction with the same hash replaces it. If the pool then exceeds its byte
+     * budget, the lowest paying transactions are evicted, see {@link #getMinFeeRate()}.
+     *
+     * @return true if the transaction was added and not evicted right away
+     */
+    public boolean addTransaction(Transaction tx, long fee, Collection<Hash256> poolParents) {
+        int size = tx.getRawTxLength();
+        double minFeeRate = getMinFeeRate();
+        if (minFeeRate > 0 && (double) fee / size < minFeeRate)
+            return false;
+        Entry e = new Entry(tx, fee, size, nextSeq.getAndIncrement());
+        // claim every spent outpoint, the first transaction to claim one keeps it
+        ArrayList<UTXO> claimed = new ArrayList<UTXO>(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            Hash256 spender = spenders.putIfAbsent(ut, e.hash);
+            if (spender == null) {
+                claimed.add(ut);
+            } else if (!spender.equals(e.hash)) {
+                for (UTXO c : claimed)
+                    spenders.remove(c, e.hash);
+                return false;
+            }
+        }
+        boolean kept;
+        synchronized (this) {
+            // an eviction since the claims may have taken a parent, and the claims on its outputs
+            if (!H.keySet().containsAll(poolParents) || !holdsClaims(e)) {
+                for (UTXO c : claimed)
+                    spenders.remove(c, e.hash);
+                return false;
+            }
+            // a transaction with the same hash spends the same outpoints, so it is simply replaced
+            Entry old = H.put(e.hash, e);
+            if (old != null) {
+                byFeeRate.remove(old);
+                usage.addAndGet(-old.usage);
+            }
+            byFeeRate.add(e);
+            usage.addAndGet(e.usage);
+            if (!listeners.isEmpty()) {
+                events.add(() -> {
+                    for (Listener l : listeners)
+                        l.transactionAdded(tx, e.size);
+                });
+            }
+            if (usage.get() > maxBytes)
+                trimToSize();
+            kept = H.get(e.hash) == e;
+        }
+        fireEvents();
+        return kept;
+    }
+
+    /** @return true if {@code e} is still the claimed spender of every outpoint it spends */
+    private boolean holdsClaims(Entry e) {
+        for (Transaction.Input in : e.tx.getInputs()) {
+            if (!e.hash.equals(spenders.get(new UTXO(in.prevTxHash, in.outputIndex))))
+                return false;
+        }
+        return true;
     }
 
-    public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Delivers the queued notifications unless another thread is already delivering them. The
+     * queue is checked again after letting go, so a change queued just before is not left behind.
+     */
+    private void fireEvents() {
+        while (!events.isEmpty() && dispatching.compareAndSet(false, true)) {
+            try {
+                for (Runnable event = events.poll(); event != null; event = events.poll())
+                    event.run();
+            } finally {
+                dispatching.set(false);
+            }
+        }
+    }
+
+    /**
+     * Evicts the lowest fee-rate transactions, with every pool transaction spending their outputs,
+     * until the pool fits its budget. The minimum fee rate is raised above each evicted rate so
+     * the same spam is turned away at the door next time. Called holding the pool's lock.
+     */
+    private void trimToSize() {
+        while (usage.get() > maxBytes) {
+            Entry worst = byFeeRate.pollLast();
+            if (worst == null)
+                return;
+            double raised = worst.feeRate() + INCREMENTAL_FEE_RATE;
+            if (raised > getMinFeeRate())
+                minFee.set(new MinFee(raised, System.currentTimeMillis()));
+            removeTransactionLocked(worst.tx.getHash());
+            for (int i = 0; i < worst.tx.numOutputs(); i++)
+                removeSpenderLocked(new UTXO(worst.hash, i));
+        }
+    }
+
+    /**
+     * @return the fee rate, in base units per serialized byte, that a transaction must pay to be
+     *         admitted; 0 until the pool first overflows. It halves every
+     *         {@link #MIN_FEE_HALF_LIFE_MILLIS}, or two and four times as fast while the pool is
+     *         less than half or a quarter full, and drops to 0 once it is small.
+     */
+    public double getMinFeeRate() {
+        MinFee current = minFee.get();
+        if (current.rate == 0)
+            return 0;
+        long now = System.currentTimeMillis();
+        long halfLife = MIN_FEE_HALF_LIFE_MILLIS;
+        if (usage.get() < maxBytes / 4)
+            halfLife /= 4;
+        else if (usage.get() < maxBytes / 2)
+            halfLife /= 2;
+        double rate = current.rate * Math.pow(0.5, (double) (now - current.time) / halfLife);
+        if (rate < INCREMENTAL_FEE_RATE / 2)
+            rate = 0;
+        // losing this race only means another thread stored a decay or a raise of its own
+        minFee.compareAndSet(current, rate == 0 ? NO_MIN_FEE : new MinFee(rate, now));
+        return rate;
+    }
+
+    /** @return the estimated heap bytes held by the pool's transactions and indexes */
+    public long getUsage() {
+        return usage.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        synchronized (this) {
+            removeTransactionLocked(txHash);
+        }
+        fireEvents();
+    }
+
+    /** Removes the transaction with hash {@code txHash} while holding the pool's lock */
+    private void removeTransactionLocked(byte[] txHash) {
+        Hash256 hash = Hash256.tryWrap(txHash);
+        if (hash == null)
+            return;
+        Entry e = H.remove(hash);
+        if (e == null)
+            return;
+        byFeeRate.remove(e);
+        usage.addAndGet(-e.usage);
+        for (Transaction.Input in : e.tx.getInputs())
+            spenders.remove(new UTXO(in.prevTxHash, in.outputIndex), hash);
+        if (!listeners.isEmpty()) {
+            events.add(() -> {
+                for (Listener l : listeners)
+                    l.transactionRemoved(e.tx);
+            });
+        }
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Hash256 hash = Hash256.tryWrap(txHash);
+        Entry e = hash == null ? null : H.get(hash);
+        return e == null ? null : e.tx;
+    }
+
+    /** @return the pool transaction spending {@code utxo}, or null if none does */
+    public Transaction getSpender(UTXO utxo) {
+        Hash256 hash = spenders.get(utxo);
+        Entry e = hash == null ? null : H.get(hash);
+        return e == null ? null : e.tx;
+    }
+
+    /** @return the pool transactions, other than {@code tx} itself, that spend any input of {@code tx} */
+    public ArrayList<Transaction> getConflicts(Transaction tx) {
+        ArrayList<Transaction> conflicts = new ArrayList<Transaction>();
+        Hash256 hash = tx.getId();
+        for (Transaction.Input in : tx.getInputs()) {
+            Hash256 spender = spenders.get(new UTXO(in.prevTxHash, in.outputIndex));
+            Entry e = spender == null || spender.equals(hash) ? null : H.get(spender);
+            if (e != null && !conflicts.contains(e.tx))
+                conflicts.add(e.tx);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Removes the pool transaction spending {@code utxo}, if any, together with the pool
+     * transactions that spend its outputs, since those can no longer be confirmed either.
+     */
+    public void removeSpender(UTXO utxo) {
+        synchronized (this) {
+            removeSpenderLocked(utxo);
+        }
+        fireEvents();
+    }
+
+    /** Removes the spender of {@code utxo} and its descendants while holding the pool's lock */
+    private void removeSpenderLocked(UTXO utxo) {
+        // descendants are found through a worklist, a long chain of them must not overflow the stack
+        ArrayDeque<UTXO> pending = new ArrayDeque<UTXO>();
+        pending.add(utxo);
+        while (!pending.isEmpty()) {
+            UTXO ut = pending.poll();
+            Transaction spender = getSpender(ut);
+            if (spender == null) {
+                // a claim whose transaction is not published yet, its admission will fail
+                Hash256 claim = spenders.get(ut);
+                if (claim != null)
+                    spenders.remove(ut, claim);
+                continue;
+            }
+            removeTransactionLocked(spender.getHash());
+            for (int i = 0; i < spender.numOutputs(); i++)
+                pending.add(new UTXO(spender.getId(), i));
+        }
     }
 
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry e : H.values())
+            T.add(e.tx);
         return T;
     }
+
+    /**
+     * @return the best paying transactions by fee rate, at most {@code maxTxs} of them and at most
+     *         {@code maxBytes} serialized bytes in total. A transaction spending the output of
+     *         another pool transaction is only taken once that parent has been taken, right after
+     *         it if it pays better. The fee-rate index is walked from the top and the walk stops
+     *         as soon as {@code maxTxs} transactions are taken. Transactions admitted after the
+     *         call started are ignored, so concurrent admissions cannot change the result.
+     */
+    public ArrayList<Transaction> selectTransactions(int maxTxs, long maxBytes) {
+        long horizon = nextSeq.get();
+        ArrayList<Transaction> selected = new ArrayList<Transaction>();
+        HashSet<Hash256> taken = new HashSet<Hash256>();
+        // children waiting for a pool parent that has not been taken yet, and those released since
+        HashMap<Hash256, ArrayList<Entry>> waiting = new HashMap<Hash256, ArrayList<Entry>>();
+        TreeSet<Entry> ready = new TreeSet<Entry>(BY_FEE_RATE);
+        Iterator<Entry> index = byFeeRate.iterator();
+        Entry next = index.hasNext() ? index.next() : null;
+        long bytes = 0;
+        while (selected.size() < maxTxs && (next != null || !ready.isEmpty())) {
+            Entry e;
+            if (next != null && (ready.isEmpty() || BY_FEE_RATE.compare(next, ready.first()) < 0)) {
+                e = next;
+                next = index.hasNext() ? index.next() : null;
+            } else {
+                e = ready.pollFirst();
+            }
+            if (e.seq >= horizon)
+                continue;
+            Hash256 missing = missingParent(e, taken, horizon);
+            if (missing != null) {
+                waiting.computeIfAbsent(missing, k -> new ArrayList<Entry>()).add(e);
+                continue;
+            }
+            if (bytes + e.size > maxBytes)
+                continue;
+            bytes += e.size;
+            selected.add(e.tx);
+            taken.add(e.hash);
+            ArrayList<Entry> children = waiting.remove(e.hash);
+            if (children != null)
+                ready.addAll(children);
+        }
+        return selected;
+    }
+
+    /**
+     * @return the hash of a pool transaction admitted before {@code horizon} that {@code e} spends
+     *         from and that is not taken yet, or null
+     */
+    private Hash256 missingParent(Entry e, HashSet<Hash256> taken, long horizon) {
+        for (Transaction.Input in : e.tx.getInputs()) {
+            Hash256 parent = Hash256.tryWrap(in.prevTxHash);
+            if (parent == null || taken.contains(parent) || parent.equals(e.hash))
+                continue;
+            Entry p = H.get(parent);
+            if (p != null && p.seq < horizon)
+                return parent;
+        }
+        return null;
+    }
 }
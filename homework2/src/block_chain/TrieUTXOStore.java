@@ -0,0 +1,45 @@
+package block_chain;
+
+import java.util.ArrayList;
+
+/** The default {@link UTXOStore}, a {@link PersistentHashMap} that copies in constant time */
+public class TrieUTXOStore implements UTXOStore {
+
+    private PersistentHashMap<UTXO, Transaction.Output> H;
+
+    public TrieUTXOStore() {
+        H = PersistentHashMap.empty();
+    }
+
+    private TrieUTXOStore(PersistentHashMap<UTXO, Transaction.Output> H) {
+        this.H = H;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H = H.plus(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        H = H.minus(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public ArrayList<UTXO> keys() {
+        return H.keys();
+    }
+
+    public UTXOStore copy() {
+        return new TrieUTXOStore(H);
+    }
+}
@@ -1,9 +1,12 @@
 package block_chain;
 import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
 
 public class TxHandler {
 
@@ -13,11 +16,64 @@ public class TxHandler {
      * constructor.
      */
 	private  UTXOPool curUTXOPool;
+	/** where {@link #isValidTx} looks up spent outputs, {@code curUTXOPool} unless only validating */
+	private final UTXOLookup outputs;
+
+	/** batches with fewer inputs than this are verified on the calling thread */
+	public static final int PARALLEL_VERIFY_THRESHOLD = 64;
+	private final boolean parallelVerify;
+	private final BlockUndo undo;
+	/** signature results computed ahead of time by {@link #handleTxs}, per transaction */
+	private final IdentityHashMap<Transaction, VerifiedInputs> verified = new IdentityHashMap<Transaction, VerifiedInputs>();
+
+	/** the outcome of checking each input's signature, and the key it was checked against */
+	private static class VerifiedInputs {
+		final PublicKey[] keys;
+		final boolean[] valid;
+
+		VerifiedInputs(int numInputs) {
+			keys = new PublicKey[numInputs];
+			valid = new boolean[numInputs];
+		}
+	}
 	
     public TxHandler(UTXOPool utxoPool) {
+    	this(utxoPool, false);
+    }
+
+    /**
+     * If {@code parallelVerify} is set, {@link #handleTxs} checks the signatures of all inputs in
+     * a batch on the common ForkJoin pool before applying the transactions in order.
+     */
+    public TxHandler(UTXOPool utxoPool, boolean parallelVerify) {
+    	this(utxoPool, parallelVerify, null);
+    }
+
+    /**
+     * If {@code undo} is not null, every change {@link #handleTxs} makes to the pool is also
+     * recorded there so it can be reverted later.
+     */
+    public TxHandler(UTXOPool utxoPool, boolean parallelVerify, BlockUndo undo) {
     	this.curUTXOPool = utxoPool;
-        // IMPLEMENT THIS
+    	this.outputs = utxoPool;
+    	this.parallelVerify = parallelVerify;
+    	this.undo = undo;
+    }
+
+    private TxHandler(UTXOLookup outputs) {
+    	this.outputs = outputs;
+    	this.parallelVerify = false;
+    	this.undo = null;
+    }
+
+    /**
+     * @return {@link #isValidTx(Transaction)} against the outputs in {@code outputs}, which are
+     *         only read, so a view over several sources does not have to be a full pool
+     */
+    public static boolean isValidTx(Transaction tx, UTXOLookup outputs) {
+    	return new TxHandler(outputs).isValidTx(tx);
     }
+    /** @return a copy of the current pool, see {@link UTXOPool#release()} */
     public UTXOPool getUTXOPool() {
     	return(new UTXOPool(curUTXOPool));
     }
@@ -33,9 +89,9 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-    	double totalOutValue = 0;
-    	double totalInValue = 0;
-    	HashSet<UTXO> uSet = new HashSet<UTXO>();
+    	long totalOutValue = 0;
+    	long totalInValue = 0;
+    	HashSet<OutPoint> uSet = new HashSet<OutPoint>();
 //    	int index = 0;
     	int inputSize = tx.getInputs().size();
         for(int index = 0;index<inputSize;index ++) {
@@ -48,91 +104,180 @@ public class TxHandler {
         	
         	UTXO toCheck = new UTXO(inPrevHash, inOututIndex);
         	//(1)
-        	if(!this.curUTXOPool.contains(toCheck)) {
-        		System.out.println("(1)");
+        	Transaction.Output spent = this.outputs.getTxOutput(toCheck);
+        	if(spent == null) {
         		return false;
         	}
         	//(2)
-        	PublicKey pubKeyToCheck = this.curUTXOPool.getTxOutput(toCheck).address;
-        	if(Crypto.verifySignature(pubKeyToCheck, tx.getRawDataToSign(index), txIn.signature)==false){ 
+        	PublicKey pubKeyToCheck = spent.address;
+        	if(!verifySignature(tx, index, pubKeyToCheck)){ 
         		
 //        		System.out.println("index"+index);
 //        		System.out.println(tx.getRawDataToSign(index));
 //        		System.out.println(txIn.signature);
 //        		System.out.println(Crypto.verifySignature(pubKeyToCheck, tx.getRawDataToSign(index), txIn.signature));
 //        		
-        		System.out.println("(2)");
         		return false;
 			}
         	
-        	if (!uSet.contains(toCheck)) {
-        		uSet.add(toCheck);
-        		totalInValue += this.curUTXOPool.getTxOutput(toCheck).value;
+        	if (uSet.add(new OutPoint(inPrevHash, inOututIndex))) {
+        		totalInValue = sum(totalInValue, spent.value);
         	}
         	else {
-        		System.out.println("(3)");
         		return(false);
         	}
         }
         for(Transaction.Output txout:tx.getOutputs()) {
         	if(txout.value>=0) {
-        		totalOutValue +=txout.value;
+        		totalOutValue = sum(totalOutValue, txout.value);
         	}
         	else {
-        		System.out.println("(4)");
         		return(false);
         	}
         }
-        if (totalOutValue>totalInValue) {
-        	System.out.println("(5)");
+        if (totalOutValue < 0 || totalOutValue>totalInValue) {
         	return(false);
         }
         return true;
     }
 
+    /** @return the first input of {@code tx} that is not in the current pool, or null */
+    private UTXO missingInput(Transaction tx) {
+    	for (Transaction.Input txIn : tx.getInputs()) {
+    		UTXO ut = new UTXO(txIn.prevTxHash, txIn.outputIndex);
+    		if (!this.curUTXOPool.contains(ut))
+    			return ut;
+    	}
+    	return null;
+    }
+
+    /** @return {@code a + b}, or -1 if the sum of these non-negative amounts overflows */
+    private static long sum(long a, long b) {
+    	if (a < 0 || b > Long.MAX_VALUE - a)
+    		return -1;
+    	return a + b;
+    }
+
+    private boolean verifySignature(Transaction tx, int index, PublicKey pubKey) {
+    	VerifiedInputs done = verified.get(tx);
+    	if (done != null && done.keys[index] == pubKey) {
+    		return done.valid[index];
+    	}
+    	return Crypto.verifySignature(pubKey, tx.getRawDataToSign(index), tx.getInput(index).signature);
+    }
+
+    /**
+     * Checks the signature of every input in {@code txs} whose spent output can already be found,
+     * either in the current pool or among the outputs of {@code txs}, using the common ForkJoin
+     * pool. Nothing is applied to the pool here; {@link #isValidTx} picks the results up later.
+     */
+    private void verifyInParallel(Transaction[] txs) {
+    	int numInputs = 0;
+    	HashMap<UTXO, Transaction.Output> batchOutputs = new HashMap<UTXO, Transaction.Output>();
+    	for (Transaction tx : txs) {
+    		numInputs += tx.numInputs();
+    		if (tx.getHash() == null)
+    			continue;
+    		for (int i = 0; i < tx.numOutputs(); i++)
+    			batchOutputs.put(new UTXO(tx.getId(), i), tx.getOutput(i));
+    	}
+    	if (numInputs < PARALLEL_VERIFY_THRESHOLD)
+    		return;
+
+    	Transaction[] taskTx = new Transaction[numInputs];
+    	int[] taskIndex = new int[numInputs];
+    	int numTasks = 0;
+    	for (Transaction tx : txs) {
+    		VerifiedInputs done = new VerifiedInputs(tx.numInputs());
+    		for (int i = 0; i < tx.numInputs(); i++) {
+    			Transaction.Input in = tx.getInput(i);
+    			if (in.prevTxHash == null)
+    				continue;
+    			UTXO spent = new UTXO(in.prevTxHash, in.outputIndex);
+    			Transaction.Output out = curUTXOPool.getTxOutput(spent);
+    			if (out == null)
+    				out = batchOutputs.get(spent);
+    			if (out == null)
+    				continue;
+    			done.keys[i] = out.address;
+    			taskTx[numTasks] = tx;
+    			taskIndex[numTasks] = i;
+    			numTasks++;
+    		}
+    		verified.put(tx, done);
+    	}
+    	IntStream.range(0, numTasks).parallel().forEach(t -> {
+    		Transaction tx = taskTx[t];
+    		int i = taskIndex[t];
+    		VerifiedInputs done = verified.get(tx);
+    		done.valid[i] = Crypto.verifySignature(done.keys[i], tx.getRawDataToSign(i), tx.getInput(i).signature);
+    	});
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * The transactions are checked in passes over the array in order, each one valid at that point
+     * being accepted right away, until a pass accepts nothing. Only a missing input can make a
+     * rejected transaction valid later, so a later pass does not check everything again: it
+     * checks the transactions whose missing input an accepted transaction has since created, in
+     * the same pass if they come after it and in the next one otherwise.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        boolean checkValid = true;
-        ArrayList<Transaction> possibleTxsList =  new ArrayList<Transaction>(Arrays.asList(possibleTxs));
+        if (parallelVerify)
+        	verifyInParallel(possibleTxs);
+
+        // the transactions waiting for each missing input, and those to check in this pass and the next
+        HashMap<UTXO, List<Integer>> waiting = new HashMap<UTXO, List<Integer>>();
+        PriorityQueue<Integer> pass = new PriorityQueue<Integer>();
+        PriorityQueue<Integer> nextPass = new PriorityQueue<Integer>();
+        for (int i = 0; i < possibleTxs.length; i++)
+        	pass.add(i);
         ArrayList<Transaction> validT = new ArrayList<Transaction>();
-        while(checkValid) {
-        	int initSize = possibleTxsList.size();
-        	List<Transaction> toRemove = new ArrayList<Transaction>();
-        	for(Transaction aTran: possibleTxsList) {
-        		if(isValidTx(aTran)){
-        			//handle the UTXOPool
-        			int index = 0;
-        			byte[] aTranHash = aTran.getHash();
-        			
-//        			delete the inputs
-        			for(Transaction.Input txIn:aTran.getInputs()) {
-        	        	byte[] inPrevHash = txIn.prevTxHash;
-        	        	int inOututIndex = txIn.outputIndex;
-        	        	UTXO toDelUtxo = new UTXO(inPrevHash, inOututIndex);
-        	        	this.curUTXOPool.removeUTXO(toDelUtxo);
-        	        }
-        			
-//        			add the outputs
-        			for (Transaction.Output txOut : aTran.getOutputs()) {
-        				UTXO utxo = new UTXO(aTranHash, index);        				
-        				this.curUTXOPool.addUTXO(utxo,txOut);
-        				index++;
+        while (!pass.isEmpty()) {
+        	int i = pass.poll();
+        	Transaction aTran = possibleTxs[i];
+        	if (isValidTx(aTran)) {
+        		//handle the UTXOPool
+        		int index = 0;
+        		Hash256 aTranHash = aTran.getId();
+
+//        		delete the inputs
+        		for (Transaction.Input txIn : aTran.getInputs()) {
+        			UTXO toDelUtxo = new UTXO(txIn.prevTxHash, txIn.outputIndex);
+        			if (undo != null)
+        				undo.spend(toDelUtxo, this.curUTXOPool.getTxOutput(toDelUtxo));
+        			this.curUTXOPool.removeUTXO(toDelUtxo);
+        		}
+
+//        		add the outputs, waking whoever waits for them
+        		for (Transaction.Output txOut : aTran.getOutputs()) {
+        			UTXO utxo = new UTXO(aTranHash, index);
+        			if (undo != null)
+        				undo.create(utxo, txOut, this.curUTXOPool.getTxOutput(utxo));
+        			this.curUTXOPool.addUTXO(utxo, txOut);
+        			List<Integer> woken = waiting.remove(utxo);
+        			if (woken != null) {
+        				for (int w : woken)
+        					(w > i ? pass : nextPass).add(w);
         			}
-        			
-        			
-        			validT.add(aTran);
-        			toRemove.add(aTran);
-//        			possibleTxsList.remove(aTran);
+        			index++;
         		}
+        		validT.add(aTran);
+        	} else {
+        		UTXO missing = missingInput(aTran);
+        		if (missing != null)
+        			waiting.computeIfAbsent(missing, k -> new ArrayList<Integer>()).add(i);
+        	}
+        	if (pass.isEmpty()) {
+        		PriorityQueue<Integer> swap = pass;
+        		pass = nextPass;
+        		nextPass = swap;
         	}
-        	possibleTxsList.removeAll(toRemove);
-//        	check if there is a minus and if there is still TX in possibleTxsList
-        	checkValid = possibleTxsList.size() < initSize && possibleTxsList.size()!=0;
         }
+        verified.clear();
         return validT.toArray(new Transaction[validT.size()]);
     }
 
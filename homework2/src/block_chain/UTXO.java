@@ -9,6 +9,9 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** computed once, UTXOs are looked up far more often than they are created */
+    private final int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
@@ -16,6 +19,14 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = 31 * (17 + index) + Arrays.hashCode(this.txHash);
+    }
+
+    /** Creates the UTXO for output {@code index} of the transaction {@code txHash}, without copying it */
+    public UTXO(Hash256 txHash, int index) {
+        this.txHash = txHash.bytes();
+        this.index = index;
+        this.hash = 31 * (17 + index) + txHash.hashCode();
     }
 
     /** @return the transaction hash of this UTXO */
@@ -41,15 +52,7 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return hash == utxo.hash && index == utxo.index && Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
@@ -57,9 +60,6 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
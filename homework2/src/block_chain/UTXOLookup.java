@@ -0,0 +1,11 @@
+package block_chain;
+
+/**
+ * Read-only access to the outputs a transaction may spend, all that {@link TxHandler#isValidTx}
+ * needs. {@link UTXOPool} is one; a view can also combine several sources without copying them.
+ */
+public interface UTXOLookup {
+
+    /** @return the unspent output {@code utxo}, or null if it is not available */
+    Transaction.Output getTxOutput(UTXO utxo);
+}
@@ -1,23 +1,37 @@
 package block_chain;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
-public class UTXOPool {
+public class UTXOPool implements UTXOLookup {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
-    /** Creates a new empty UTXOPool */
+    /**
+     * Creates a new empty UTXOPool, kept in a persistent trie so copies of the pool share it and
+     * each update only replaces the path to the changed entry
+     */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new TrieUTXOStore();
+    }
+
+    /** Creates a UTXOPool over {@code store}, which it reads and updates in place */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. This takes constant time for the
+     * default store, see {@link UTXOStore#copy()} for the others.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+    }
+
+    /** Releases the store of a pool copied with {@link #UTXOPool(UTXOPool)}, see {@link UTXOStore#release()} */
+    public void release() {
+        H.release();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -40,16 +54,11 @@ public class UTXOPool {
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return H.keys();
     }
 }
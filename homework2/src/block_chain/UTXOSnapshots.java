@@ -0,0 +1,375 @@
+package block_chain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshots of the UTXO set right after a main chain block, so a restarted {@link BlockChain}
+ * loads the UTXO set instead of replaying every block since the genesis block, see
+ * {@link BlockChain#restore}.
+ *
+ * A snapshot file {@code utxo-<height>.snap} starts with a header naming the block and its
+ * height, followed by the entries sorted by outpoint in chunks. Each chunk carries its length, its
+ * entry count and a CRC32 checksum, and its own table of the addresses it pays, so chunks are
+ * checked and decoded independently and in parallel. Within a chunk the txid is written once for
+ * consecutive outputs of a transaction, and indexes, values and address numbers are varints.
+ *
+ * A snapshot is written under a temporary name and renamed once complete, and only the newest
+ * {@link #KEPT} are kept; a damaged snapshot is skipped in favour of an older one. Snapshots are
+ * only taken at final blocks, main chain blocks that were pruned, so a height never gets a
+ * snapshot of another block.
+ */
+public class UTXOSnapshots {
+
+    /** number of snapshot files kept */
+    public static final int KEPT = 2;
+    /** most entries in a chunk */
+    static final int CHUNK_ENTRIES = 4096;
+
+    private static final int MAGIC = 0x55534E50; // "USNP"
+    private static final int VERSION = 1;
+
+    // header: magic, version, height, block hash, entry count (long), chunk count
+    private static final int HEADER = 56;
+    private static final int HASH_AT = 12;
+    private static final int ENTRIES_AT = 44;
+    private static final int CHUNKS_AT = 52;
+    // chunk header: payload length, entry count, CRC32 of the payload
+    private static final int CHUNK_HEADER = 12;
+
+    private static final Pattern NAME = Pattern.compile("utxo-(\\d+)\\.snap");
+
+    /** The block a loaded snapshot was taken at */
+    public static final class Snapshot {
+        private final int height;
+        private final byte[] blockHash;
+        private final List<IOException> skipped;
+
+        Snapshot(int height, byte[] blockHash, List<IOException> skipped) {
+            this.height = height;
+            this.blockHash = blockHash;
+            this.skipped = skipped;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public byte[] getBlockHash() {
+            return blockHash.clone();
+        }
+
+        /** @return why each newer snapshot was skipped, newest first */
+        public List<IOException> getSkipped() {
+            return skipped;
+        }
+    }
+
+    /** The decoded entries of one chunk */
+    private static final class Chunk {
+        final UTXO[] utxos;
+        final Transaction.Output[] outputs;
+
+        Chunk(int entries) {
+            utxos = new UTXO[entries];
+            outputs = new Transaction.Output[entries];
+        }
+    }
+
+    private final File dir;
+    private final int interval;
+
+    /** Keeps snapshots in {@code dir}, creating it if needed, taking one every {@code interval} heights */
+    public UTXOSnapshots(File dir, int interval) throws IOException {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        this.dir = dir;
+        this.interval = interval;
+        Files.createDirectories(dir.toPath());
+    }
+
+    /** @return true if a snapshot is due at {@code height} */
+    public boolean isDue(int height) {
+        return height % interval == 0;
+    }
+
+    /**
+     * Writes a snapshot of {@code utxoPool}, the UTXO set right after the final block
+     * {@code blockHash} at {@code height}, unless there is one for that block already, then drops
+     * the oldest snapshots beyond {@link #KEPT}.
+     *
+     * @throws IOException also if there is an intact snapshot of another block at {@code height}
+     */
+    public void write(int height, byte[] blockHash, UTXOPool utxoPool) throws IOException {
+        File file = file(height);
+        byte[] existing = blockHashOf(file);
+        if (existing != null) {
+            if (Arrays.equals(existing, blockHash))
+                return;
+            throw new IOException(file + " is a snapshot of another block at height " + height);
+        }
+        ArrayList<OutPoint> outPoints = new ArrayList<OutPoint>();
+        for (UTXO utxo : utxoPool.getAllUTXO())
+            outPoints.add(new OutPoint(utxo));
+        Collections.sort(outPoints);
+        int chunks = (outPoints.size() + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(height).put(blockHash);
+            header.putLong(outPoints.size()).putInt(chunks).flip();
+            write(channel, header);
+            for (int c = 0; c < chunks; c++) {
+                List<OutPoint> entries = outPoints.subList(c * CHUNK_ENTRIES, Math.min(outPoints.size(), (c + 1) * CHUNK_ENTRIES));
+                byte[] payload = encodeChunk(entries, utxoPool);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER);
+                chunkHeader.putInt(payload.length).putInt(entries.size()).putInt((int) crc.getValue()).flip();
+                write(channel, chunkHeader);
+                write(channel, ByteBuffer.wrap(payload));
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Integer> heights = heights();
+        for (int i = KEPT; i < heights.size(); i++)
+            Files.deleteIfExists(file(heights.get(i)).toPath());
+    }
+
+    /**
+     * Loads the newest snapshot that is intact into {@code into}, which should be empty. Nothing
+     * is put into it unless the whole snapshot checks out.
+     *
+     * @return the block the loaded snapshot was taken at, with the reasons the newer ones were
+     *         skipped, or null if there are no snapshots
+     * @throws IOException if there are snapshots but none is intact, with the reason for each
+     *         attached as suppressed
+     */
+    public Snapshot loadNewest(UTXOStore into) throws IOException {
+        ArrayList<IOException> skipped = new ArrayList<IOException>();
+        for (int height : heights()) {
+            try {
+                return load(file(height), into, skipped);
+            } catch (IOException e) {
+                skipped.add(new IOException("skipped snapshot " + file(height) + ": " + e.getMessage(), e));
+            }
+        }
+        if (skipped.isEmpty())
+            return null;
+        IOException e = new IOException("no intact snapshot in " + dir);
+        for (IOException reason : skipped)
+            e.addSuppressed(reason);
+        throw e;
+    }
+
+    /** @return the block hash in the header of the snapshot {@code file}, or null if it has no valid header */
+    private static byte[] blockHashOf(File file) {
+        if (!file.exists())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            read(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                return null;
+            return Arrays.copyOfRange(header.array(), HASH_AT, HASH_AT + Hash256.LENGTH);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Reads the chunk headers one after the other, then decodes the chunks in parallel */
+    private Snapshot load(File file, UTXOStore into, List<IOException> skipped) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            read(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("not a UTXO snapshot");
+            int height = header.getInt(8);
+            byte[] blockHash = Arrays.copyOfRange(header.array(), HASH_AT, HASH_AT + Hash256.LENGTH);
+            long entries = header.getLong(ENTRIES_AT);
+            int chunks = header.getInt(CHUNKS_AT);
+            if (chunks < 0 || entries < 0 || chunks > channel.size() / CHUNK_HEADER)
+                throw new IOException("bad snapshot header");
+
+            long[] offsets = new long[chunks];
+            long total = 0;
+            long position = HEADER;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER);
+            for (int c = 0; c < chunks; c++) {
+                chunkHeader.clear();
+                read(channel, chunkHeader, position);
+                offsets[c] = position;
+                int length = chunkHeader.getInt(0);
+                if (length < 0 || chunkHeader.getInt(4) < 0)
+                    throw new IOException("bad chunk header");
+                total += chunkHeader.getInt(4);
+                position += CHUNK_HEADER + length;
+            }
+            if (total != entries || position != channel.size())
+                throw new IOException("snapshot is truncated or has extra data");
+
+            Chunk[] decoded;
+            try {
+                decoded = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+                    try {
+                        return readChunk(channel, offsets[c]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).toArray(Chunk[]::new);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            for (Chunk chunk : decoded) {
+                for (int i = 0; i < chunk.utxos.length; i++)
+                    into.put(chunk.utxos[i], chunk.outputs[i]);
+            }
+            return new Snapshot(height, blockHash, Collections.unmodifiableList(new ArrayList<IOException>(skipped)));
+        }
+    }
+
+    private static Chunk readChunk(FileChannel channel, long offset) throws IOException {
+        ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER);
+        read(channel, chunkHeader, offset);
+        ByteBuffer payload = ByteBuffer.allocate(chunkHeader.getInt(0));
+        read(channel, payload, offset + CHUNK_HEADER);
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != chunkHeader.getInt(8))
+            throw new IOException("bad checksum in chunk at " + offset);
+        try {
+            return decodeChunk(payload, chunkHeader.getInt(4));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("bad chunk at " + offset, e);
+        }
+    }
+
+    /**
+     * @return {@code entries} with their outputs in {@code utxoPool}: the table of addresses,
+     *         then for each entry its output index shifted left by one, with the low bit set when
+     *         the txid differs from the previous entry's and follows, its value and the number of
+     *         its address in the table
+     */
+    private static byte[] encodeChunk(List<OutPoint> entries, UTXOPool utxoPool) {
+        IdentityHashMap<PublicKeyTable.Entry, Integer> numbers = new IdentityHashMap<PublicKeyTable.Entry, Integer>();
+        ArrayList<byte[][]> addresses = new ArrayList<byte[][]>();
+        byte[][] txHashes = new byte[entries.size()][];
+        Transaction.Output[] outputs = new Transaction.Output[entries.size()];
+        int size = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            OutPoint op = entries.get(i);
+            txHashes[i] = op.getTxHash();
+            outputs[i] = utxoPool.getTxOutput(new UTXO(txHashes[i], op.getIndex()));
+            Integer number = numbers.get(outputs[i].getAddressEntry());
+            if (number == null) {
+                byte[][] address = BlockStore.addressBytes(outputs[i].getAddressEntry());
+                number = addresses.size();
+                numbers.put(outputs[i].getAddressEntry(), number);
+                addresses.add(address);
+                size += BlockStore.addressLength(address);
+            }
+            size += Transaction.varintLength(indexAndFlag(op.getIndex(), true));
+            if (i == 0 || !Arrays.equals(txHashes[i], txHashes[i - 1]))
+                size += Hash256.LENGTH;
+            size += Transaction.varintLength(outputs[i].value) + Transaction.varintLength(number);
+        }
+        size += Transaction.varintLength(addresses.size());
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        Transaction.putVarint(buf, addresses.size());
+        for (byte[][] address : addresses)
+            BlockStore.putAddress(buf, address);
+        for (int i = 0; i < entries.size(); i++) {
+            boolean newTx = i == 0 || !Arrays.equals(txHashes[i], txHashes[i - 1]);
+            Transaction.putVarint(buf, indexAndFlag(entries.get(i).getIndex(), newTx));
+            if (newTx)
+                buf.put(txHashes[i]);
+            Transaction.putVarint(buf, outputs[i].value);
+            Transaction.putVarint(buf, numbers.get(outputs[i].getAddressEntry()));
+        }
+        return buf.array();
+    }
+
+    private static long indexAndFlag(int index, boolean newTx) {
+        return (index & 0xFFFFFFFFL) << 1 | (newTx ? 1 : 0);
+    }
+
+    private static Chunk decodeChunk(ByteBuffer buf, int entries) throws IOException {
+        PublicKeyTable.Entry[] addresses = new PublicKeyTable.Entry[BlockStore.count(buf)];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = PublicKeyTable.intern(BlockStore.getAddress(buf));
+        Chunk decoded = new Chunk(entries);
+        Hash256 txHash = null;
+        for (int i = 0; i < entries; i++) {
+            long indexAndFlag = Transaction.getVarint(buf);
+            if ((indexAndFlag & 1) != 0) {
+                byte[] b = new byte[Hash256.LENGTH];
+                buf.get(b);
+                txHash = Hash256.wrap(b);
+            } else if (txHash == null) {
+                throw new IOException("chunk starts without a txid");
+            }
+            long value = Transaction.getVarint(buf);
+            PublicKeyTable.Entry address = addresses[BlockStore.count(buf, addresses.length)];
+            decoded.utxos[i] = new UTXO(txHash, (int) (indexAndFlag >>> 1));
+            decoded.outputs[i] = new Transaction.Output(value, address);
+        }
+        if (buf.hasRemaining())
+            throw new IOException("extra data in chunk");
+        return decoded;
+    }
+
+    /** @return the heights of the snapshot files in the directory, newest first */
+    private List<Integer> heights() {
+        ArrayList<Integer> heights = new ArrayList<Integer>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher m = NAME.matcher(name);
+                if (m.matches())
+                    heights.add(Integer.parseInt(m.group(1)));
+            }
+        }
+        heights.sort(Collections.reverseOrder());
+        return heights;
+    }
+
+    private File file(int height) {
+        return new File(dir, String.format("utxo-%010d.snap", height));
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("unexpected end of snapshot");
+            position += n;
+        }
+    }
+}
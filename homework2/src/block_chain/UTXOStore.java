@@ -0,0 +1,35 @@
+package block_chain;
+
+import java.util.ArrayList;
+
+/**
+ * Where a {@link UTXOPool} keeps its entries. The default store is an in-memory persistent trie,
+ * see {@link UTXOPool#UTXOPool()}; other stores trade cheap copies for a smaller footprint.
+ */
+public interface UTXOStore {
+
+    /** @return the output stored for {@code utxo}, or null if there is none */
+    Transaction.Output get(UTXO utxo);
+
+    boolean contains(UTXO utxo);
+
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    void remove(UTXO utxo);
+
+    int size();
+
+    /** @return all stored UTXOs, in no particular order */
+    ArrayList<UTXO> keys();
+
+    /** @return an independent store with the same entries */
+    UTXOStore copy();
+
+    /**
+     * Tells the store that this copy is no longer used, so the store it was taken from stops
+     * keeping entries for it; the copy must not be used afterwards. Copies that share their
+     * entries, as the default store's do, need nothing released.
+     */
+    default void release() {
+    }
+}
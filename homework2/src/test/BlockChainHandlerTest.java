@@ -5,8 +5,11 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
@@ -15,6 +18,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.junit.jupiter.api.BeforeAll;
@@ -23,7 +28,14 @@ import org.junit.jupiter.api.Test;
 import block_chain.Block;
 import block_chain.BlockChain;
 import block_chain.BlockHandler;
+import block_chain.BlockStore;
+import block_chain.BlockTemplateBuilder;
+import block_chain.MerkleProof;
 import block_chain.Transaction;
+import block_chain.TrieUTXOStore;
+import block_chain.UTXO;
+import block_chain.UTXOPool;
+import block_chain.UTXOSnapshots;
 import block_chain.TxHandler;
 
 class BlockChainHandlerTest {
@@ -372,4 +384,640 @@ class BlockChainHandlerTest {
 
     }
 
+    /*
+    * Test 8 is to check the Merkle inclusion proofs. Every transaction in a connected block should
+    * have a proof that verifies against the block hash alone, and a proof should not verify for a
+    * different block or with an index or path that does not fit the block.
+    * */
+    @Test
+    void testInclusionProof() {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+
+        // five transactions after the coinbase, so the tree has a node without a right sibling
+        Block block = new Block(genesisBlock.getHash(), kpB.getPublic());
+        for (int i = 0; i < 5; i++) {
+            Transaction tx = new Transaction();
+            tx.addOutput(i, kpA.getPublic());
+            tx.finalize();
+            block.addTransaction(tx);
+        }
+        block.finalize();
+
+        for (Transaction tx : block.getTransactions()) {
+            MerkleProof proof = block.getInclusionProof(tx.getHash());
+            assertNotNull("Missing proof for a tx in the block", proof);
+            assertTrue("Proof does not verify", proof.verify(block.getHash()));
+            assertFalse("Proof verifies for another block", proof.verify(genesisBlock.getHash()));
+        }
+
+        // the coinbase is leaf 0, so it has a proof and the same transactions paying another
+        // miner make another block
+        MerkleProof coinbaseProof = block.getInclusionProof(block.getCoinbase().getHash());
+        assertNotNull("Missing proof for the coinbase", coinbaseProof);
+        assertTrue("Coinbase proof does not verify", coinbaseProof.verify(block.getHash()));
+        Block otherMiner = new Block(genesisBlock.getHash(), kpC.getPublic());
+        for (Transaction tx : block.getTransactions())
+            otherMiner.addTransaction(tx);
+        otherMiner.finalize();
+        assertFalse("Blocks paying different miners share a hash", Arrays.equals(block.getHash(), otherMiner.getHash()));
+
+        // proofs claiming a position outside the block or carrying a padded path are rejected
+        MerkleProof proof = block.getInclusionProof(block.getTransactions().get(4).getHash());
+        assertEquals("Transaction not after the coinbase", 5, proof.getIndex());
+        ArrayList<byte[]> padded = new ArrayList<byte[]>(proof.getPath());
+        padded.add(0, proof.getTxHash());
+        MerkleProof[] tampered = {
+            new MerkleProof(proof.getTxHash(), 6, 6, proof.getPath(), proof.getPrevBlockHash()),
+            new MerkleProof(proof.getTxHash(), -1, 6, proof.getPath(), proof.getPrevBlockHash()),
+            new MerkleProof(proof.getTxHash(), 5, 7, proof.getPath(), proof.getPrevBlockHash()),
+            new MerkleProof(proof.getTxHash(), 5, 6, padded, proof.getPrevBlockHash()),
+        };
+        for (MerkleProof bad : tampered)
+            assertFalse("Tampered proof verifies", bad.verify(block.getHash()));
+
+        // the chain only hands out proofs for blocks it keeps
+        Transaction coinbase = genesisBlock.getCoinbase();
+        assertNull("Proof for a block not in the chain", blockChain.getInclusionProof(block.getHash(), coinbase.getHash()));
+    }
+
+    /*
+    * Test 9 is to check that created blocks take the best paying transactions first, and that a
+    * transaction is never taken before the pool transaction whose output it spends, even when it
+    * pays better.
+    * */
+    @Test
+    void testFeeRateSelection() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain, 1, Long.MAX_VALUE);
+
+        // the parent pays a fee of 1, its child a fee of 5
+        Transaction parent = new Transaction();
+        parent.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        parent.addOutput(10, kpA.getPublic());
+        parent.addOutput(14, kpB.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(kpA.getPrivate());
+        sig.update(parent.getRawDataToSign(0));
+        parent.addSignature(sig.sign(), 0);
+        parent.finalize();
+
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(5, kpC.getPublic());
+        sig.initSign(kpA.getPrivate());
+        sig.update(child.getRawDataToSign(0));
+        child.addSignature(sig.sign(), 0);
+        child.finalize();
+
+        assertTrue("Parent rejected", blockHandler.processTx(parent));
+        assertTrue("Child rejected", blockHandler.processTx(child));
+
+        Block first = blockHandler.createBlock(kpB.getPublic());
+        assertNotNull("Failed to create the first block", first);
+        assertEquals("Child taken before its parent", Arrays.asList(parent), first.getTransactions());
+
+        Block second = blockHandler.createBlock(kpB.getPublic());
+        assertNotNull("Failed to create the second block", second);
+        assertEquals("Child not taken after its parent", Arrays.asList(child), second.getTransactions());
+    }
+
+    /*
+    * Test 10 is to check that transactions are validated when they are submitted, so a double
+    * spend or a forged signature never reaches the pool and cannot spoil the next created block.
+    * */
+    @Test
+    void testValidateOnAdmission() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Signature sig = Signature.getInstance("SHA256withRSA");
+
+        Transaction spend = new Transaction();
+        spend.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        spend.addOutput(25, kpB.getPublic());
+        sig.initSign(kpA.getPrivate());
+        sig.update(spend.getRawDataToSign(0));
+        spend.addSignature(sig.sign(), 0);
+        spend.finalize();
+
+        Transaction doubleSpend = new Transaction();
+        doubleSpend.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        doubleSpend.addOutput(25, kpC.getPublic());
+        sig.initSign(kpA.getPrivate());
+        sig.update(doubleSpend.getRawDataToSign(0));
+        doubleSpend.addSignature(sig.sign(), 0);
+        doubleSpend.finalize();
+
+        // B's output signed by C
+        Transaction forged = new Transaction();
+        forged.addInput(spend.getHash(), 0);
+        forged.addOutput(25, kpC.getPublic());
+        sig.initSign(kpC.getPrivate());
+        sig.update(forged.getRawDataToSign(0));
+        forged.addSignature(sig.sign(), 0);
+        forged.finalize();
+
+        assertTrue("Valid tx rejected", blockHandler.processTx(spend));
+        assertFalse("Double spend admitted", blockHandler.processTx(doubleSpend));
+        assertFalse("Forged signature admitted", blockHandler.processTx(forged));
+
+        Block created = blockHandler.createBlock(kpB.getPublic());
+        assertNotNull("Created block was rejected", created);
+        assertEquals("Wrong txs in created block", Arrays.asList(spend), created.getTransactions());
+    }
+
+    /*
+    * Test 11 is to check that blocks arriving before their parent are kept and connected as soon as
+    * the parent is, grandchildren included, and that blocks without a hash are not kept.
+    * */
+    @Test
+    void testOrphanBlocks() {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Block block1 = new Block(genesisBlock.getHash(), kpB.getPublic());
+        block1.finalize();
+        Block block2 = new Block(block1.getHash(), kpC.getPublic());
+        block2.finalize();
+        Block block3 = new Block(block2.getHash(), kpA.getPublic());
+        block3.finalize();
+
+        assertFalse("Orphan added before its parent", blockHandler.processBlock(block3));
+        assertFalse("Orphan added before its parent", blockHandler.processBlock(block2));
+        assertTrue("Failed to process parent block", blockHandler.processBlock(block1));
+        assertEquals("Orphans not connected", blockChain.getMaxHeightBlock(), block3);
+
+        // blocks that are not finalized are refused, whether their parent is known or not
+        Block unfinalized = new Block(block3.getHash(), kpB.getPublic());
+        assertFalse("Unfinalized block added", blockHandler.processBlock(unfinalized));
+        Block unfinalizedOrphan = new Block(new byte[32], kpB.getPublic());
+        assertFalse("Unfinalized orphan added", blockHandler.processBlock(unfinalizedOrphan));
+        assertEquals("Unfinalized block connected", blockChain.getMaxHeightBlock(), block3);
+    }
+
+    /*
+    * Test 12 is to check that pruned blocks are written to the block store, can still be read and
+    * proven through the chain, and can be read again after the store is reopened.
+    * */
+    @Test
+    void testBlockStore() throws GeneralSecurityException, IOException {
+        File dir = Files.createTempDirectory("blocks").toFile();
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockStore store = new BlockStore(dir, 4096);
+        BlockChain blockChain = new BlockChain(genesisBlock, new TrieUTXOStore(), Long.MAX_VALUE, store);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Transaction spend = new Transaction();
+        spend.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        spend.addOutput(25, kpB.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(kpA.getPrivate());
+        sig.update(spend.getRawDataToSign(0));
+        spend.addSignature(sig.sign(), 0);
+        spend.finalize();
+        assertTrue("Valid tx rejected", blockHandler.processTx(spend));
+        Block block1 = blockHandler.createBlock(kpB.getPublic());
+        for (int i = 0; i < 20; i++) {
+            blockHandler.createBlock(kpC.getPublic());
+        }
+
+        Block stored = blockChain.getBlock(block1.getHash());
+        assertNotNull("Pruned block not stored", stored);
+        assertArrayEquals("Stored block differs", block1.getHash(), stored.getHash());
+        MerkleProof proof = blockChain.getInclusionProof(block1.getHash(), spend.getHash());
+        assertNotNull("No proof for a stored block", proof);
+        assertTrue("Proof does not verify", proof.verify(block1.getHash()));
+        store.close();
+
+        try (BlockStore reopened = new BlockStore(dir, 4096)) {
+            assertEquals("Blocks lost on reopen", store.size(), reopened.size());
+            assertArrayEquals("Reopened block differs", genesisBlock.getHash(), reopened.get(genesisBlock.getHash()).getHash());
+            assertEquals("Stored tx differs", spend, reopened.get(block1.getHash()).getTransaction(0));
+        }
+    }
+
+    /*
+    * Test 13 is to check that a chain restarted from a UTXO snapshot and the stored blocks after it
+    * ends up in the same state as the chain that kept running, once it receives the blocks that
+    * were not stored yet.
+    * */
+    @Test
+    void testSnapshotRestore() throws GeneralSecurityException, IOException {
+        File dir = Files.createTempDirectory("restore").toFile();
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockStore store = new BlockStore(new File(dir, "blocks"));
+        BlockChain blockChain = BlockChain.restore(genesisBlock, new TrieUTXOStore(), Long.MAX_VALUE, store,
+                new UTXOSnapshots(new File(dir, "utxo"), 5));
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Transaction spend = new Transaction();
+        spend.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        spend.addOutput(25, kpB.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(kpA.getPrivate());
+        sig.update(spend.getRawDataToSign(0));
+        spend.addSignature(sig.sign(), 0);
+        spend.finalize();
+        assertTrue("Valid tx rejected", blockHandler.processTx(spend));
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        for (int i = 0; i < 26; i++) {
+            blocks.add(blockHandler.createBlock(i % 2 == 0 ? kpB.getPublic() : kpC.getPublic()));
+        }
+        blockChain.flushSnapshots();
+        store.close();
+
+        // heights 1 to 18 are stored, the newest snapshot is at height 15
+        try (BlockStore reopened = new BlockStore(new File(dir, "blocks"))) {
+            BlockChain restored = BlockChain.restore(genesisBlock, new TrieUTXOStore(), Long.MAX_VALUE, reopened,
+                    new UTXOSnapshots(new File(dir, "utxo"), 5));
+            assertArrayEquals("Stored blocks not replayed", blocks.get(16).getHash(), restored.getMaxHeightBlock().getHash());
+            assertEquals("Snapshot not used", 15, restored.getOldestBlockHeight());
+            for (Block block : blocks.subList(17, blocks.size())) {
+                assertTrue("Failed to process block after restart", new BlockHandler(restored).processBlock(block));
+            }
+            assertArrayEquals("Different tip after restart", blockChain.getMaxHeightBlock().getHash(), restored.getMaxHeightBlock().getHash());
+            assertEquals("Different oldest height after restart", blockChain.getOldestBlockHeight(), restored.getOldestBlockHeight());
+            ArrayList<UTXO> expected = blockChain.getMaxHeightUTXOPool().getAllUTXO();
+            ArrayList<UTXO> actual = restored.getMaxHeightUTXOPool().getAllUTXO();
+            assertEquals("Different UTXO set after restart", expected.size(), actual.size());
+            for (UTXO utxo : expected) {
+                assertEquals("Different output after restart", blockChain.getMaxHeightUTXOPool().getTxOutput(utxo),
+                        restored.getMaxHeightUTXOPool().getTxOutput(utxo));
+            }
+            assertNotNull("Output of the mined tx missing after restart", restored.getMaxHeightUTXOPool().getTxOutput(new UTXO(spend.getHash(), 0)));
+        }
+    }
+
+    /*
+    * Test 14 is to check that moving back across a block whose coinbase has the same id as an
+    * unspent older one (same miner, same value) brings the older output back, so a side block can
+    * still spend it.
+    * */
+    @Test
+    void testSameCoinbaseDisconnect() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Block block2 = new Block(genesisBlock.getHash(), kpA.getPublic());
+        block2.finalize();
+        assertTrue("Failed to process block", blockHandler.processBlock(block2));
+
+        Transaction spend = new Transaction();
+        spend.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        spend.addOutput(25, kpB.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(kpA.getPrivate());
+        sig.update(spend.getRawDataToSign(0));
+        spend.addSignature(sig.sign(), 0);
+        spend.finalize();
+        Block side = new Block(genesisBlock.getHash(), kpB.getPublic());
+        side.addTransaction(spend);
+        side.finalize();
+        assertTrue("Side block spending the older coinbase rejected", blockHandler.processBlock(side));
+    }
+
+    /*
+    * Test 15 is to check that the main chain cannot move onto a branch forking below a pruned
+    * height: the blocks kept on it are dropped with the side block they build on, and blocks
+    * extending them are not added.
+    * */
+    @Test
+    void testPrunedBranchFinal() {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Block main = new Block(genesisBlock.getHash(), kpB.getPublic());
+        main.finalize();
+        assertTrue("Failed to process block", blockHandler.processBlock(main));
+        Block side = new Block(genesisBlock.getHash(), kpC.getPublic());
+        side.finalize();
+        assertTrue("Failed to process side block", blockHandler.processBlock(side));
+        side = new Block(side.getHash(), kpC.getPublic());
+        side.finalize();
+        assertTrue("Failed to process side block", blockHandler.processBlock(side));
+        for (int h = 3; h <= 11; h++) {
+            main = new Block(main.getHash(), kpB.getPublic());
+            main.finalize();
+            assertTrue("Failed to process block", blockHandler.processBlock(main));
+        }
+
+        for (int h = 4; h <= 20; h++) {
+            side = new Block(side.getHash(), kpC.getPublic());
+            side.finalize();
+            assertFalse("Block added on a branch forking below a pruned height", blockHandler.processBlock(side));
+        }
+        assertEquals("Main chain moved", main, blockChain.getMaxHeightBlock());
+    }
+
+    /*
+    * Test 16 is to check that pruned blocks are no longer referenced by the chain, so memory does
+    * not grow with the length of the chain.
+    * */
+    @Test
+    void testPrunedBlocksReleased() throws InterruptedException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        WeakReference<Block> first = new WeakReference<Block>(blockHandler.createBlock(kpB.getPublic()));
+        for (int i = 0; i < 2 * BlockChain.CUT_OFF_AGE; i++) {
+            assertNotNull("Failed to create block", blockHandler.createBlock(kpB.getPublic()));
+        }
+        genesisBlock = null;
+        for (int i = 0; i < 50 && first.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Pruned block still referenced", first.get());
+    }
+
+    /*
+    * Test 17 is to check that a damaged snapshot is skipped and reported, and that loading fails
+    * when no snapshot is intact instead of silently starting from the genesis block.
+    * */
+    @Test
+    void testDamagedSnapshots() throws IOException {
+        File dir = Files.createTempDirectory("snapshots").toFile();
+        UTXOSnapshots snapshots = new UTXOSnapshots(dir, 5);
+        UTXOPool pool = new UTXOPool();
+        byte[] txHash = new byte[32];
+        pool.addUTXO(new UTXO(txHash, 0), new Transaction.Output(25, kpA.getPublic()));
+        byte[] blockHash = new byte[32];
+        snapshots.write(5, blockHash, pool);
+        blockHash[0] = 1;
+        snapshots.write(10, blockHash, pool);
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        try (RandomAccessFile raf = new RandomAccessFile(files[1], "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        UTXOSnapshots.Snapshot loaded = snapshots.loadNewest(new TrieUTXOStore());
+        assertEquals("Older snapshot not used", 5, loaded.getHeight());
+        assertEquals("Damaged snapshot not reported", 1, loaded.getSkipped().size());
+
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        IOException failure = null;
+        try {
+            snapshots.loadNewest(new TrieUTXOStore());
+        } catch (IOException e) {
+            failure = e;
+        }
+        assertNotNull("Loaded without an intact snapshot", failure);
+        assertEquals("Damaged snapshots not reported", 2, failure.getSuppressed().length);
+    }
+
+    /*
+    * Test 18 is to check that a side block spending the same output as a pool transaction leaves
+    * it in the pool, since the main chain can still confirm it.
+    * */
+    @Test
+    void testSideBlockKeepsPool() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Block block2 = new Block(genesisBlock.getHash(), kpB.getPublic());
+        block2.finalize();
+        assertTrue("Failed to process block", blockHandler.processBlock(block2));
+
+        Transaction[] spends = new Transaction[2];
+        for (int i = 0; i < spends.length; i++) {
+            spends[i] = new Transaction();
+            spends[i].addInput(genesisBlock.getCoinbase().getHash(), 0);
+            spends[i].addOutput(25, i == 0 ? kpB.getPublic() : kpC.getPublic());
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(kpA.getPrivate());
+            sig.update(spends[i].getRawDataToSign(0));
+            spends[i].addSignature(sig.sign(), 0);
+            spends[i].finalize();
+        }
+        assertTrue("Valid tx rejected", blockHandler.processTx(spends[0]));
+        Block side = new Block(genesisBlock.getHash(), kpC.getPublic());
+        side.addTransaction(spends[1]);
+        side.finalize();
+        assertTrue("Failed to process side block", blockHandler.processBlock(side));
+
+        assertNotNull("Pool tx dropped for a side block", blockChain.getTransactionPool().getTransaction(spends[0].getHash()));
+        Block created = blockHandler.createBlock(kpB.getPublic());
+        assertEquals("Pool tx not mined", Arrays.asList(spends[0]), created.getTransactions());
+    }
+
+    /*
+    * Test 19 is to check that a block repeating its last transaction does not share the hash of the
+    * valid block, so receiving it first cannot keep the valid block out, and that a block's
+    * transactions cannot be edited behind its Merkle root.
+    * */
+    @Test
+    void testDuplicatedTxBlock() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Transaction[] txs = new Transaction[3];
+        byte[] prev = genesisBlock.getCoinbase().getHash();
+        KeyPair[] owners = { kpA, kpB, kpC, kpA };
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = new Transaction();
+            txs[i].addInput(prev, 0);
+            txs[i].addOutput(25, owners[i + 1].getPublic());
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(owners[i].getPrivate());
+            sig.update(txs[i].getRawDataToSign(0));
+            txs[i].addSignature(sig.sign(), 0);
+            txs[i].finalize();
+            prev = txs[i].getHash();
+        }
+        Block valid = new Block(genesisBlock.getHash(), kpB.getPublic());
+        Block duplicated = new Block(genesisBlock.getHash(), kpB.getPublic());
+        for (Transaction tx : txs) {
+            valid.addTransaction(tx);
+            duplicated.addTransaction(tx);
+        }
+        duplicated.addTransaction(txs[2]);
+        valid.finalize();
+        duplicated.finalize();
+
+        assertFalse("Duplicated block shares the valid block's hash", Arrays.equals(valid.getHash(), duplicated.getHash()));
+        assertFalse("Duplicated block accepted", blockHandler.processBlock(duplicated));
+        assertTrue("Valid block rejected", blockHandler.processBlock(valid));
+
+        UnsupportedOperationException edit = null;
+        try {
+            valid.getTransactions().remove(0);
+        } catch (UnsupportedOperationException e) {
+            edit = e;
+        }
+        assertNotNull("Transactions edited behind the Merkle root", edit);
+    }
+
+    /*
+    * Test 20 is to check that templates follow the pool: admissions are appended with their
+    * Merkle leaves, a full template is rebuilt, and a new max height block drops what it mined.
+    * */
+    @Test
+    void testBlockTemplates() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Block block2 = blockHandler.createBlock(kpB.getPublic());
+        assertNotNull("Failed to create block", block2);
+        BlockTemplateBuilder templates = new BlockTemplateBuilder(blockChain, 2, Long.MAX_VALUE);
+        assertEquals("Template of an empty pool has txs", 0, templates.getTemplate(kpC.getPublic()).getTransactions().size());
+
+        Transaction parent = signedSpend(kpA, genesisBlock.getCoinbase().getHash(), kpB.getPublic());
+        Transaction child = signedSpend(kpB, parent.getHash(), kpC.getPublic());
+        Transaction other = signedSpend(kpB, block2.getCoinbase().getHash(), kpC.getPublic());
+        assertTrue("Valid tx rejected", blockHandler.processTx(parent));
+        assertTrue("Valid tx rejected", blockHandler.processTx(child));
+        Block template = templates.getTemplate(kpC.getPublic());
+        assertEquals("Admissions not appended in order", Arrays.asList(parent, child), template.getTransactions());
+
+        // the same block built from scratch has the same Merkle root, so the same hash
+        Block scratch = new Block(block2.getHash(), kpC.getPublic());
+        scratch.addTransaction(parent);
+        scratch.addTransaction(child);
+        scratch.finalize();
+        assertArrayEquals("Template Merkle root differs", scratch.getHash(), template.getHash());
+
+        assertTrue("Valid tx rejected", blockHandler.processTx(other));
+        assertEquals("Full template grew", 2, templates.getTemplate(kpC.getPublic()).getTransactions().size());
+        assertTrue("Template rejected by the chain", blockChain.addBlock(template));
+        assertEquals("Mined txs kept in the template", Arrays.asList(other), templates.getTemplate(kpC.getPublic()).getTransactions());
+    }
+
+    /*
+    * Test 21 is to check pruning by height after the height buckets have wrapped around several
+    * times: a block can still be added on the oldest kept height but not below it, and side
+    * blocks are dropped once their height is pruned while main chain blocks are not.
+    * */
+    @Test
+    void testPruneByHeight() {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        ArrayList<Block> main = new ArrayList<Block>();
+        main.add(genesisBlock);
+        for (int i = 0; i < 5 * BlockChain.CUT_OFF_AGE; i++)
+            main.add(blockHandler.createBlock(kpB.getPublic()));
+
+        int oldest = blockChain.getOldestBlockHeight();
+        assertEquals("Wrong oldest height", main.size() - BlockChain.CUT_OFF_AGE + 2, oldest);
+        Block below = new Block(main.get(oldest - 2).getHash(), kpC.getPublic());
+        below.finalize();
+        assertFalse("Block added below the oldest height", blockHandler.processBlock(below));
+        Block side = new Block(main.get(oldest - 1).getHash(), kpC.getPublic());
+        side.finalize();
+        assertTrue("Block on the oldest height rejected", blockHandler.processBlock(side));
+        assertNotNull("Side block not kept", blockChain.getBlock(side.getHash()));
+
+        for (int i = 0; i < BlockChain.CUT_OFF_AGE; i++)
+            main.add(blockHandler.createBlock(kpB.getPublic()));
+        assertNull("Pruned side block kept", blockChain.getBlock(side.getHash()));
+        int newOldest = blockChain.getOldestBlockHeight();
+        assertNull("Block below the oldest height kept", blockChain.getBlock(main.get(newOldest - 2).getHash()));
+        for (int h = newOldest; h <= main.size(); h++)
+            assertNotNull("Kept main chain block missing", blockChain.getBlock(main.get(h - 1).getHash()));
+    }
+
+    /*
+    * Test 22 is to check that the live UTXO set follows the main chain through a reorg and back:
+    * disconnected blocks give back what they spent and take back what they created, pool
+    * transactions that no longer fit the new main chain are dropped, and those it confirms are
+    * dropped without their children.
+    * */
+    @Test
+    void testReorgAndBack() throws GeneralSecurityException {
+        Block genesisBlock = new Block(null, kpA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        UTXO genesisOut = new UTXO(genesisBlock.getCoinbase().getHash(), 0);
+
+        Transaction toB = signedSpend(kpA, genesisBlock.getCoinbase().getHash(), kpB.getPublic());
+        Block main2 = new Block(genesisBlock.getHash(), kpB.getPublic());
+        main2.addTransaction(toB);
+        main2.finalize();
+        assertTrue("Failed to process block", blockHandler.processBlock(main2));
+        Transaction fromB = signedSpend(kpB, toB.getHash(), kpA.getPublic());
+        assertTrue("Valid tx rejected", blockHandler.processTx(fromB));
+
+        Transaction toC = signedSpend(kpA, genesisBlock.getCoinbase().getHash(), kpC.getPublic());
+        Block side2 = new Block(genesisBlock.getHash(), kpC.getPublic());
+        side2.addTransaction(toC);
+        side2.finalize();
+        Block side3 = new Block(side2.getHash(), kpC.getPublic());
+        side3.finalize();
+        assertTrue("Failed to process side block", blockHandler.processBlock(side2));
+        assertTrue("Failed to process side block", blockHandler.processBlock(side3));
+
+        UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
+        assertTrue("Side branch output missing", utxoPool.contains(new UTXO(toC.getHash(), 0)));
+        assertTrue("Side branch coinbase missing", utxoPool.contains(new UTXO(side2.getCoinbase().getHash(), 0)));
+        assertFalse("Disconnected output kept", utxoPool.contains(new UTXO(toB.getHash(), 0)));
+        assertFalse("Disconnected coinbase kept", utxoPool.contains(new UTXO(main2.getCoinbase().getHash(), 0)));
+        assertFalse("Spent output back", utxoPool.contains(genesisOut));
+        assertNull("Pool tx spending a disconnected output kept", blockChain.getTransactionPool().getTransaction(fromB.getHash()));
+
+        Block main3 = new Block(main2.getHash(), kpB.getPublic());
+        main3.finalize();
+        Block main4 = new Block(main3.getHash(), kpB.getPublic());
+        main4.finalize();
+        assertTrue("Failed to process block", blockHandler.processBlock(main3));
+        assertTrue("Failed to process block", blockHandler.processBlock(main4));
+
+        utxoPool = blockChain.getMaxHeightUTXOPool();
+        assertTrue("Reconnected output missing", utxoPool.contains(new UTXO(toB.getHash(), 0)));
+        assertTrue("Reconnected coinbase missing", utxoPool.contains(new UTXO(main2.getCoinbase().getHash(), 0)));
+        assertFalse("Side branch output kept", utxoPool.contains(new UTXO(toC.getHash(), 0)));
+        assertFalse("Side branch coinbase kept", utxoPool.contains(new UTXO(side2.getCoinbase().getHash(), 0)));
+        assertFalse("Spent output back", utxoPool.contains(genesisOut));
+
+        // a branch confirming a pool parent but not its child leaves the child in the pool
+        Transaction parent = signedSpend(kpB, main3.getCoinbase().getHash(), kpC.getPublic());
+        Transaction child = signedSpend(kpC, parent.getHash(), kpA.getPublic());
+        assertTrue("Valid tx rejected", blockHandler.processTx(parent));
+        assertTrue("Valid tx rejected", blockHandler.processTx(child));
+        Block other4 = new Block(main3.getHash(), kpC.getPublic());
+        other4.addTransaction(parent);
+        other4.finalize();
+        Block other5 = new Block(other4.getHash(), kpC.getPublic());
+        other5.finalize();
+        assertTrue("Failed to process side block", blockHandler.processBlock(other4));
+        assertTrue("Failed to process side block", blockHandler.processBlock(other5));
+        assertNull("Confirmed tx kept in the pool", blockChain.getTransactionPool().getTransaction(parent.getHash()));
+        assertNotNull("Child of a confirmed tx dropped", blockChain.getTransactionPool().getTransaction(child.getHash()));
+    }
+
+    /** @return a transaction signed by {@code from} moving the 25 coin output 0 of {@code prevTxHash} to {@code to} */
+    static Transaction signedSpend(KeyPair from, byte[] prevTxHash, PublicKey to) throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        tx.addInput(prevTxHash, 0);
+        tx.addOutput(25, to);
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(from.getPrivate());
+        sig.update(tx.getRawDataToSign(0));
+        tx.addSignature(sig.sign(), 0);
+        tx.finalize();
+        return tx;
+    }
 }
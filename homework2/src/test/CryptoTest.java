@@ -0,0 +1,95 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import block_chain.Crypto;
+import block_chain.SignatureCache;
+
+class CryptoTest {
+    static KeyPair kpA;
+
+    @BeforeAll
+    static void setUpBeforeClass() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpA = kpg.generateKeyPair();
+    }
+
+    static byte[] sign(KeyPair kp, String algorithm, byte[] message) throws GeneralSecurityException {
+        Signature sig = Signature.getInstance(algorithm);
+        sig.initSign(kp.getPrivate());
+        sig.update(message);
+        return sig.sign();
+    }
+
+    /*
+    * Test 1 is to check that the signature cache counts hits and misses, and that when it is full
+    * adding a check evicts another one and never the check just added.
+    * */
+    @Test
+    void testSignatureCacheEviction() {
+        SignatureCache cache = new SignatureCache(2);
+        byte[] signature = new byte[] { 1, 2, 3 };
+        assertFalse("Unknown check found", cache.contains(kpA.getPublic(), new byte[] { 0 }, signature));
+        cache.add(kpA.getPublic(), new byte[] { 0 }, signature);
+        assertTrue("Added check not found", cache.contains(kpA.getPublic(), new byte[] { 0 }, signature));
+        assertFalse("Check on other data found", cache.contains(kpA.getPublic(), new byte[] { 1 }, signature));
+        assertEquals("Wrong hit count", 1, cache.getHits());
+        assertEquals("Wrong miss count", 2, cache.getMisses());
+
+        for (int i = 1; i < 100; i++) {
+            byte[] message = new byte[] { (byte) i };
+            cache.add(kpA.getPublic(), message, signature);
+            assertTrue("Cache over capacity", cache.size() <= 2);
+            assertTrue("Check just added was evicted", cache.contains(kpA.getPublic(), message, signature));
+        }
+    }
+
+    /*
+    * Test 2 is to check that a verified signature is taken from the cache the second time, and that
+    * a failed check is not recorded.
+    * */
+    @Test
+    void testVerifyUsesCache() throws GeneralSecurityException {
+        SignatureCache cache = Crypto.getSignatureCache();
+        byte[] message = "testVerifyUsesCache".getBytes();
+        byte[] signature = sign(kpA, "SHA256withRSA", message);
+        assertFalse("Check cached before it was made", cache.contains(kpA.getPublic(), message, signature));
+
+        assertTrue("Valid signature rejected", Crypto.verifySignature(kpA.getPublic(), message, signature));
+        long hits = cache.getHits();
+        assertTrue("Cached signature rejected", Crypto.verifySignature(kpA.getPublic(), message, signature));
+        assertEquals("Second check not served by the cache", hits + 1, cache.getHits());
+
+        signature[0] ^= 1;
+        assertFalse("Damaged signature accepted", Crypto.verifySignature(kpA.getPublic(), message, signature));
+        assertFalse("Failed check cached", cache.contains(kpA.getPublic(), message, signature));
+    }
+
+    /*
+    * Test 3 is to check that signatures under an Ed25519 key are verified with Ed25519, and that a
+    * damaged signature or one made by another key is rejected.
+    * */
+    @Test
+    void testEd25519Signature() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("Ed25519");
+        KeyPair kpE = kpg.generateKeyPair();
+        KeyPair kpF = kpg.generateKeyPair();
+        byte[] message = "testEd25519Signature".getBytes();
+        byte[] signature = sign(kpE, "Ed25519", message);
+
+        assertTrue("Valid Ed25519 signature rejected", Crypto.verifySignature(kpE.getPublic(), message, signature));
+        assertFalse("Signature accepted under another key", Crypto.verifySignature(kpF.getPublic(), message, signature));
+        assertFalse("RSA signature accepted under an Ed25519 key",
+                Crypto.verifySignature(kpE.getPublic(), message, sign(kpA, "SHA256withRSA", message)));
+        signature[0] ^= 1;
+        assertFalse("Damaged Ed25519 signature accepted", Crypto.verifySignature(kpE.getPublic(), message, signature));
+    }
+}
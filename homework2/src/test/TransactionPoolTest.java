@@ -0,0 +1,197 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import block_chain.Hash256;
+import block_chain.Transaction;
+import block_chain.TransactionPool;
+import block_chain.UTXO;
+
+class TransactionPoolTest {
+    static KeyPair kpA;
+
+    @BeforeAll
+    static void setUpBeforeClass() throws GeneralSecurityException {
+        kpA = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    /** @return a transaction spending output 0 of {@code prevTxHash} */
+    static Transaction spend(byte[] prevTxHash, long value) {
+        Transaction tx = new Transaction();
+        tx.addInput(prevTxHash, 0);
+        tx.addOutputUnits(value, kpA.getPublic());
+        tx.finalize();
+        return tx;
+    }
+
+    /*
+    * Test 1 is to check that admissions racing with evictions never leave a transaction whose pool
+    * parent was evicted, and that listeners see every transaction added before it is removed.
+    * */
+    @Test
+    void testConcurrentAdmission() throws InterruptedException {
+        int n = 2000;
+        Transaction[] parents = new Transaction[n];
+        Transaction[] children = new Transaction[n];
+        for (int i = 0; i < n; i++) {
+            byte[] outpoint = new byte[32];
+            outpoint[0] = (byte) i;
+            outpoint[1] = (byte) (i >> 8);
+            parents[i] = spend(outpoint, 1000);
+            children[i] = spend(parents[i].getHash(), 900);
+        }
+        TransactionPool pool = new TransactionPool(200_000);
+        Set<Transaction> live = ConcurrentHashMap.newKeySet();
+        AtomicInteger removedUnseen = new AtomicInteger();
+        pool.addListener(new TransactionPool.Listener() {
+            public void transactionAdded(Transaction tx, int size) {
+                live.add(tx);
+            }
+
+            public void transactionRemoved(Transaction tx) {
+                if (!live.remove(tx))
+                    removedUnseen.incrementAndGet();
+            }
+        });
+
+        // children are offered once their parent was, and only if it got in, as after validation
+        AtomicInteger offered = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        threads.submit(() -> {
+            for (int i = 0; i < n; i++) {
+                pool.addTransaction(parents[i], i % 50);
+                offered.incrementAndGet();
+            }
+        });
+        threads.submit(() -> {
+            for (int i = 0; i < n; i++) {
+                while (offered.get() <= i)
+                    Thread.yield();
+                if (pool.getTransaction(parents[i].getHash()) != null)
+                    pool.addTransaction(children[i], 500 + i % 50, Collections.singleton(parents[i].getId()));
+            }
+        });
+        threads.shutdown();
+        assertTrue("Admissions did not finish", threads.awaitTermination(1, TimeUnit.MINUTES));
+
+        Set<Hash256> inPool = new HashSet<Hash256>();
+        for (Transaction tx : pool.getTransactions())
+            inPool.add(tx.getId());
+        for (int i = 0; i < n; i++) {
+            if (inPool.contains(children[i].getId()))
+                assertTrue("Child kept without its parent", inPool.contains(parents[i].getId()));
+        }
+        assertEquals("Removal notified before admission", 0, removedUnseen.get());
+        assertEquals("Listener out of step with the pool", inPool.size(), live.size());
+    }
+
+    /*
+    * Test 2 is to check that removing the spender of an outpoint also removes a long chain of
+    * descendants without running out of stack.
+    * */
+    @Test
+    void testRemoveLongChain() {
+        int n = 100_000;
+        TransactionPool pool = new TransactionPool();
+        byte[] outpoint = new byte[32];
+        byte[] prev = outpoint;
+        for (int i = 0; i < n; i++) {
+            Transaction tx = spend(prev, n - i);
+            assertTrue("Chained tx rejected", pool.addTransaction(tx));
+            prev = tx.getHash();
+        }
+        pool.removeSpender(new UTXO(outpoint, 0));
+        assertEquals("Descendants left in the pool", 0, pool.getTransactions().size());
+    }
+
+    /*
+    * Test 3 is to check that a full pool evicts the lowest fee rate together with the transactions
+    * spending from it, and raises its minimum fee rate above the evicted rate so a transaction
+    * paying less is turned away.
+    * */
+    @Test
+    void testEviction() {
+        Transaction[] txs = new Transaction[20];
+        for (int i = 0; i < txs.length; i++) {
+            byte[] outpoint = new byte[32];
+            outpoint[0] = (byte) (i + 1);
+            txs[i] = spend(outpoint, 1000);
+        }
+        TransactionPool probe = new TransactionPool();
+        probe.addTransaction(txs[0], 0);
+        long usage = probe.getUsage();
+        int size = txs[0].getRawTxLength();
+
+        // room for ten of them, offered paying more and more
+        TransactionPool pool = new TransactionPool(10 * usage + usage / 2);
+        for (int i = 0; i < txs.length; i++)
+            assertTrue("Better paying tx rejected", pool.addTransaction(txs[i], (i + 1) * 1000L));
+        for (int i = 0; i < txs.length; i++)
+            assertEquals("Wrong tx evicted", i >= 10, pool.getTransaction(txs[i].getHash()) != null);
+        assertTrue("Pool over its budget", pool.getUsage() <= pool.getMaxBytes());
+        assertTrue("Minimum fee rate not above the evicted rate", pool.getMinFeeRate() > 10 * 1000.0 / size);
+
+        byte[] outpoint = new byte[32];
+        outpoint[0] = 100;
+        assertFalse("Tx below the minimum fee rate admitted", pool.addTransaction(spend(outpoint, 1000), 10 * 1000));
+
+        // the child evicts the lowest paying tx, and the next eviction takes the child's parent and the child
+        Transaction child = spend(txs[11].getHash(), 900);
+        assertTrue("Child rejected", pool.addTransaction(child, 100_000));
+        assertNull("Lowest paying tx kept", pool.getTransaction(txs[10].getHash()));
+        outpoint[0] = 101;
+        assertTrue("Best paying tx rejected", pool.addTransaction(spend(outpoint, 1000), 100_000));
+        assertNull("Lowest paying tx kept", pool.getTransaction(txs[11].getHash()));
+        assertNull("Child of an evicted tx kept", pool.getTransaction(child.getHash()));
+    }
+
+    /*
+    * Test 4 is to check that listeners are notified after the pool's lock is released, so another
+    * thread the listener waits on can change the pool, and that its change is delivered after the
+    * one being notified.
+    * */
+    @Test
+    void testListenerOutsideLock() throws InterruptedException {
+        TransactionPool pool = new TransactionPool();
+        Transaction tx = spend(new byte[32], 1000);
+        StringBuilder seen = new StringBuilder();
+        AtomicInteger removedInside = new AtomicInteger();
+        pool.addListener(new TransactionPool.Listener() {
+            public void transactionAdded(Transaction added, int size) {
+                seen.append("added ");
+                Thread remover = new Thread(() -> pool.removeTransaction(added.getHash()));
+                remover.start();
+                try {
+                    remover.join(10_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!remover.isAlive() && pool.getTransaction(added.getHash()) == null)
+                    removedInside.incrementAndGet();
+            }
+
+            public void transactionRemoved(Transaction removed) {
+                seen.append("removed ");
+            }
+        });
+
+        pool.addTransaction(tx);
+        assertEquals("Pool still locked while notifying", 1, removedInside.get());
+        assertEquals("Notifications out of order", "added removed ", seen.toString());
+    }
+}
@@ -0,0 +1,136 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import block_chain.Crypto;
+import block_chain.Transaction;
+import block_chain.TxHandler;
+import block_chain.UTXO;
+import block_chain.UTXOPool;
+
+class TxHandlerTest {
+    static KeyPair kpA, kpB;
+
+    @BeforeAll
+    static void setUpBeforeClass() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpA = kpg.generateKeyPair();
+        kpB = kpg.generateKeyPair();
+    }
+
+    /** @return a transaction paying {@code value} units to {@code to} from {@code inputs}, all signed by A */
+    static Transaction spend(PublicKey to, long value, UTXO... inputs) throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        for (UTXO in : inputs)
+            tx.addInput(in.getTxHash(), in.getIndex());
+        tx.addOutputUnits(value, to);
+        for (int i = 0; i < inputs.length; i++) {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(kpA.getPrivate());
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a pool holding an output of 100 units to A at each of {@code utxos} */
+    static UTXOPool poolOf(UTXO... utxos) {
+        UTXOPool pool = new UTXOPool();
+        for (UTXO ut : utxos)
+            pool.addUTXO(ut, new Transaction.Output(100, kpA.getPublic()));
+        return pool;
+    }
+
+    static UTXO utxo(int n) {
+        byte[] txHash = new byte[32];
+        txHash[0] = (byte) n;
+        return new UTXO(txHash, 0);
+    }
+
+    /*
+    * Test 1 is to check that a batch is handled in passes over the list in order: a transaction
+    * waiting for the output of a later one is only checked again in the next pass, after a later
+    * transaction has had the chance to spend the same output.
+    * */
+    @Test
+    void testPassOrder() throws GeneralSecurityException {
+        UTXO u = utxo(1);
+        UTXO v = utxo(2);
+        Transaction p = spend(kpA.getPublic(), 100, v);
+        Transaction c = spend(kpB.getPublic(), 200, u, new UTXO(p.getHash(), 0));
+        Transaction d = spend(kpB.getPublic(), 100, u);
+
+        Transaction[] accepted = new TxHandler(poolOf(u, v)).handleTxs(new Transaction[] { c, p, d });
+        assertEquals("Not the transactions of the passes in order", Arrays.asList(p, d), Arrays.asList(accepted));
+    }
+
+    /*
+    * Test 2 is to check that a transaction listed before the parent it spends from is accepted in
+    * the next pass.
+    * */
+    @Test
+    void testChildBeforeParent() throws GeneralSecurityException {
+        UTXO u = utxo(1);
+        Transaction parent = spend(kpA.getPublic(), 100, u);
+        Transaction child = spend(kpB.getPublic(), 100, new UTXO(parent.getHash(), 0));
+
+        UTXOPool pool = poolOf(u);
+        Transaction[] accepted = new TxHandler(pool).handleTxs(new Transaction[] { child, parent });
+        assertEquals("Child not accepted after its parent", Arrays.asList(parent, child), Arrays.asList(accepted));
+        assertTrue("Child output missing", pool.contains(new UTXO(child.getHash(), 0)));
+        assertFalse("Parent output not spent", pool.contains(new UTXO(parent.getHash(), 0)));
+    }
+
+    /*
+    * Test 3 is to check that verifying the signatures in parallel accepts exactly what checking
+    * them one by one does, for a batch above the parallel threshold with bad signatures and
+    * transactions spending each other, and for a batch below it.
+    * */
+    @Test
+    void testParallelVerify() throws GeneralSecurityException {
+        for (int n : new int[] { TxHandler.PARALLEL_VERIFY_THRESHOLD + 6, 5 }) {
+            UTXO[] utxos = new UTXO[n];
+            ArrayList<Transaction> batch = new ArrayList<Transaction>();
+            for (int i = 0; i < n; i++) {
+                utxos[i] = utxo(i + 1);
+                Transaction tx = spend(kpA.getPublic(), 100, utxos[i]);
+                batch.add(tx);
+                // some spend the output of the one before them in the same batch
+                if (i % 3 == 1)
+                    batch.add(spend(kpB.getPublic(), 100, new UTXO(tx.getHash(), 0)));
+            }
+            Transaction[] txs = batch.toArray(new Transaction[0]);
+
+            Crypto.getSignatureCache().clear();
+            UTXOPool parallelPool = pool(utxos);
+            Transaction[] parallel = new TxHandler(parallelPool, true).handleTxs(txs);
+            Crypto.getSignatureCache().clear();
+            UTXOPool sequentialPool = pool(utxos);
+            Transaction[] sequential = new TxHandler(sequentialPool, false).handleTxs(txs);
+
+            assertEquals("Parallel verification accepted other transactions", Arrays.asList(sequential), Arrays.asList(parallel));
+            assertEquals("Wrong number of transactions accepted", n - n / 3 + (n + 1) / 3, parallel.length);
+            assertEquals("Pools differ after the batch", sequentialPool.getAllUTXO().size(), parallelPool.getAllUTXO().size());
+        }
+    }
+
+    /** @return a pool holding an output of 100 units at each of {@code utxos}, every third one to B so A's signature on it is bad */
+    static UTXOPool pool(UTXO... utxos) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < utxos.length; i++)
+            pool.addUTXO(utxos[i], new Transaction.Output(100, (i % 3 == 2 ? kpB : kpA).getPublic()));
+        return pool;
+    }
+}
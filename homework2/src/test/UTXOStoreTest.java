@@ -0,0 +1,310 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import block_chain.Hash256;
+import block_chain.MappedUTXOStore;
+import block_chain.OpenAddressingUTXOStore;
+import block_chain.OutPoint;
+import block_chain.PublicKeyTable;
+import block_chain.Transaction;
+import block_chain.TrieUTXOStore;
+import block_chain.UTXO;
+import block_chain.UTXOStore;
+
+class UTXOStoreTest {
+    static KeyPair kpA, kpB;
+
+    @BeforeAll
+    static void setUpBeforeClass() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpA = kpg.generateKeyPair();
+        kpB = kpg.generateKeyPair();
+    }
+
+    static UTXO utxo(int n, int index) {
+        byte[] txHash = new byte[32];
+        txHash[0] = (byte) n;
+        txHash[31] = (byte) (n >> 8);
+        return new UTXO(txHash, index);
+    }
+
+    /*
+    * Test 1 is to check that a copy of a mapped store keeps the entries it had when it was taken,
+    * whatever changes afterwards on either side, that a copy of the copy does too, and that a
+    * released copy can no longer be read.
+    * */
+    @Test
+    void testMappedCopy() throws IOException {
+        File file = File.createTempFile("utxo", ".dat");
+        file.delete();
+        try (MappedUTXOStore store = new MappedUTXOStore(file, 16)) {
+            for (int i = 0; i < 100; i++)
+                store.put(utxo(i, 0), new Transaction.Output(i, kpA.getPublic()));
+            UTXOStore copy = store.copy();
+            store.remove(utxo(1, 0));
+            store.put(utxo(2, 0), new Transaction.Output(200, kpB.getPublic()));
+            store.put(utxo(100, 0), new Transaction.Output(100, kpA.getPublic()));
+            copy.remove(utxo(3, 0));
+            UTXOStore copy2 = copy.copy();
+            copy.put(utxo(4, 0), new Transaction.Output(400, kpA.getPublic()));
+            for (int i = 0; i < 1000; i++)
+                store.put(utxo(1000 + i, 1), new Transaction.Output(i, kpB.getPublic()));
+
+            assertEquals("Copy size changed", 99, copy.size());
+            assertEquals("Copy keys changed", 99, copy.keys().size());
+            assertEquals("Removed entry gone from copy", new Transaction.Output(1, kpA.getPublic()), copy.get(utxo(1, 0)));
+            assertEquals("Changed entry changed in copy", new Transaction.Output(2, kpA.getPublic()), copy.get(utxo(2, 0)));
+            assertFalse("New entry in copy", copy.contains(utxo(100, 0)));
+            assertFalse("Entry removed from copy still there", copy.contains(utxo(3, 0)));
+            assertEquals("Copy change lost", new Transaction.Output(400, kpA.getPublic()), copy.get(utxo(4, 0)));
+
+            assertEquals("Copy change in store", new Transaction.Output(3, kpA.getPublic()), store.get(utxo(3, 0)));
+            assertEquals("Copy change in store", new Transaction.Output(4, kpA.getPublic()), store.get(utxo(4, 0)));
+            assertEquals("Wrong store size", 1100, store.size());
+
+            assertEquals("Copy of copy size", 99, copy2.size());
+            assertFalse("Copy of copy lost a removal", copy2.contains(utxo(3, 0)));
+            assertEquals("Copy of copy sees later change", new Transaction.Output(4, kpA.getPublic()), copy2.get(utxo(4, 0)));
+            assertEquals("Copy of copy lost an entry", new Transaction.Output(1, kpA.getPublic()), copy2.get(utxo(1, 0)));
+
+            // releasing one copy leaves the other reading what it had
+            copy.release();
+            store.remove(utxo(5, 0));
+            assertEquals("Copy of copy lost an entry after release", new Transaction.Output(5, kpA.getPublic()), copy2.get(utxo(5, 0)));
+            IllegalStateException released = null;
+            try {
+                copy.get(utxo(5, 0));
+            } catch (IllegalStateException e) {
+                released = e;
+            }
+            assertNotNull("Released copy still readable", released);
+            copy2.release();
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".keys").delete();
+        }
+    }
+
+    /*
+    * Test 2 is to check that a version 1 file, whose values are double coins, is read as base
+    * units once opened.
+    * */
+    @Test
+    void testMappedUpgrade() throws IOException {
+        File dir = Files.createTempDirectory("utxo").toFile();
+        File file = new File(dir, "utxo.dat");
+        try (DataOutputStream keys = new DataOutputStream(new FileOutputStream(file.getPath() + ".keys"))) {
+            byte[] algorithm = kpA.getPublic().getAlgorithm().getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = kpA.getPublic().getEncoded();
+            keys.writeInt(algorithm.length);
+            keys.write(algorithm);
+            keys.writeInt(encoded.length);
+            keys.write(encoded);
+        }
+        // header: magic, version, capacity, size; slot: used, txid, index, value, key id
+        UTXO ut = utxo(7, 3);
+        long capacity = 16;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(64 + capacity * 56);
+            raf.writeInt(0x5554584F);
+            raf.writeInt(1);
+            raf.writeLong(capacity);
+            raf.writeLong(1);
+            long h = 0;
+            for (int i = 0; i < 8; i++)
+                h = (h << 8) | (ut.getTxHash()[i] & 0xff);
+            h ^= ut.getIndex() * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+            raf.seek(64 + (h & (capacity - 1)) * 56);
+            raf.writeInt(1);
+            raf.write(ut.getTxHash());
+            raf.writeInt(ut.getIndex());
+            raf.writeDouble(12.5);
+            raf.writeInt(0);
+        }
+
+        try (MappedUTXOStore store = new MappedUTXOStore(file, 16)) {
+            assertEquals("Entry lost in upgrade", 1, store.size());
+            assertEquals("Value not converted", new Transaction.Output(Transaction.toUnits(12.5), kpA.getPublic()), store.get(ut));
+        }
+        try (MappedUTXOStore store = new MappedUTXOStore(file, 16)) {
+            assertEquals("Value converted twice", new Transaction.Output(Transaction.toUnits(12.5), kpA.getPublic()), store.get(ut));
+        }
+    }
+
+    /*
+    * Test 3 is to check that the key table keeps an address while a store holds an output paying
+    * it, drops it once the last such output is removed, and gives its id to the next new key.
+    * */
+    @Test
+    void testUnusedKeysDropped() throws GeneralSecurityException, InterruptedException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("Ed25519");
+        UTXOStore store = new OpenAddressingUTXOStore();
+        store.put(utxo(1, 0), new Transaction.Output(1, kpg.generateKeyPair().getPublic()));
+        WeakReference<PublicKeyTable.Entry> entry = new WeakReference<PublicKeyTable.Entry>(store.get(utxo(1, 0)).getAddressEntry());
+        int id = entry.get().getId();
+        collect(entry, 5);
+        assertNotNull("Address dropped while a store holds it", entry.get());
+        assertSame("Entry not found by id", entry.get(), PublicKeyTable.get(id));
+
+        store.remove(utxo(1, 0));
+        collect(entry, 50);
+        assertNull("Unused address still held", entry.get());
+        assertNull("Id still maps to the dropped address", PublicKeyTable.get(id));
+
+        // other tests may have freed ids too, so keep adding keys until this one comes back
+        int size = PublicKeyTable.size();
+        ArrayList<PublicKeyTable.Entry> added = new ArrayList<PublicKeyTable.Entry>();
+        do {
+            added.add(PublicKeyTable.intern(kpg.generateKeyPair().getPublic()));
+        } while (added.get(added.size() - 1).getId() != id && added.size() < 10000);
+        assertEquals("Freed id not reused", id, added.get(added.size() - 1).getId());
+        assertEquals("Table size does not count held entries", size + added.size(), PublicKeyTable.size());
+    }
+
+    static void collect(WeakReference<?> ref, int tries) throws InterruptedException {
+        for (int i = 0; i < tries && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    /*
+    * Test 4 is to check that the trie store holds what a map would after random puts and removes,
+    * and that a copy keeps its entries while the store goes on changing.
+    * */
+    @Test
+    void testTrieStore() {
+        checkStore(new TrieUTXOStore());
+    }
+
+    /*
+    * Test 5 is to check the open-addressing store the same way, starting small so it grows many
+    * times and removals shift long probe runs back.
+    * */
+    @Test
+    void testOpenAddressingStore() {
+        checkStore(new OpenAddressingUTXOStore(1));
+    }
+
+    /*
+    * Test 6 is to check that an outpoint turns back into the UTXO it was made from, that equal
+    * outpoints from different arrays are equal, and that txids are ordered as unsigned bytes.
+    * */
+    @Test
+    void testOutPoint() {
+        UTXO ut = utxo(300, 2);
+        OutPoint op = new OutPoint(ut);
+        assertEquals("Round trip changed the UTXO", ut, op.toUTXO());
+        assertArrayEquals("Txid changed", ut.getTxHash(), op.getTxHash());
+        assertEquals("Equal outpoints differ", op, new OutPoint(ut.getTxHash().clone(), 2));
+        assertEquals("Equal outpoints hash differently", op.hashCode(), new OutPoint(ut.getTxHash().clone(), 2).hashCode());
+        assertNotEquals("Outpoints of other indexes equal", op, new OutPoint(ut.getTxHash(), 3));
+
+        byte[] low = new byte[OutPoint.TXID_LENGTH];
+        byte[] high = new byte[OutPoint.TXID_LENGTH];
+        low[0] = 0x7f;
+        high[0] = (byte) 0x80;
+        assertTrue("Txid bytes compared as signed", new OutPoint(low, 5).compareTo(new OutPoint(high, 0)) < 0);
+        assertTrue("Index not compared last", new OutPoint(low, 0).compareTo(new OutPoint(low, 1)) < 0);
+
+        IllegalArgumentException shortTxid = null;
+        try {
+            new OutPoint(new byte[31], 0);
+        } catch (IllegalArgumentException e) {
+            shortTxid = e;
+        }
+        assertNotNull("Short txid accepted", shortTxid);
+    }
+
+    /*
+    * Test 7 is to check that a hash key keeps its own copy of the bytes, equals the key of the same
+    * bytes in another array, gives the same UTXO as those bytes, and orders as an unsigned number.
+    * */
+    @Test
+    void testHash256() {
+        byte[] bytes = utxo(258, 0).getTxHash().clone();
+        Hash256 h = Hash256.of(bytes);
+        bytes[1] = 9;
+        assertArrayEquals("Key changed with its source array", utxo(258, 0).getTxHash(), h.toByteArray());
+        h.toByteArray()[1] = 9;
+        assertEquals("Key changed through its returned bytes", Hash256.of(utxo(258, 0).getTxHash()), h);
+        assertEquals("Equal keys hash differently", Hash256.of(utxo(258, 0).getTxHash()).hashCode(), h.hashCode());
+
+        UTXO fromKey = new UTXO(h, 4);
+        UTXO fromBytes = new UTXO(utxo(258, 0).getTxHash(), 4);
+        assertEquals("UTXO of a key differs from the UTXO of its bytes", fromBytes, fromKey);
+        assertEquals("UTXO of a key hashes differently", fromBytes.hashCode(), fromKey.hashCode());
+
+        Transaction tx = new Transaction();
+        tx.addOutput(1, kpA.getPublic());
+        tx.finalize();
+        assertEquals("Transaction id differs from its hash", Hash256.of(tx.getHash()), tx.getId());
+
+        byte[] high = new byte[Hash256.LENGTH];
+        high[0] = (byte) 0x80;
+        assertTrue("Hash bytes compared as signed", h.compareTo(Hash256.of(high)) < 0);
+
+        IllegalArgumentException shortHash = null;
+        try {
+            Hash256.of(new byte[31]);
+        } catch (IllegalArgumentException e) {
+            shortHash = e;
+        }
+        assertNotNull("Short hash accepted", shortHash);
+    }
+
+    /** Applies the same random puts and removes to {@code store} and a map, copying both halfway */
+    static void checkStore(UTXOStore store) {
+        Random random = new Random(1);
+        HashMap<UTXO, Transaction.Output> model = new HashMap<UTXO, Transaction.Output>();
+        UTXOStore copy = null;
+        HashMap<UTXO, Transaction.Output> copied = null;
+        for (int step = 0; step < 20000; step++) {
+            UTXO ut = utxo(random.nextInt(3000), random.nextInt(3));
+            if (random.nextInt(3) == 0) {
+                store.remove(ut);
+                model.remove(ut);
+            } else {
+                Transaction.Output txOut = new Transaction.Output(step, (random.nextBoolean() ? kpA : kpB).getPublic());
+                store.put(ut, txOut);
+                model.put(ut, txOut);
+            }
+            if (step == 10000) {
+                copy = store.copy();
+                copied = new HashMap<UTXO, Transaction.Output>(model);
+            }
+        }
+        assertContents(store, model);
+        assertContents(copy, copied);
+    }
+
+    static void assertContents(UTXOStore store, Map<UTXO, Transaction.Output> model) {
+        assertEquals("Wrong store size", model.size(), store.size());
+        assertEquals("Wrong store keys", model.keySet(), new HashSet<UTXO>(store.keys()));
+        for (Map.Entry<UTXO, Transaction.Output> e : model.entrySet())
+            assertEquals("Wrong output", e.getValue(), store.get(e.getKey()));
+        assertFalse("Entry never put found", store.contains(utxo(5000, 0)));
+    }
+}